@@ -0,0 +1,73 @@
+package com.yit.deploy.plugin.parameters;
+
+import com.yit.deploy.core.parameters.inventory.DeployInventory;
+import com.yit.deploy.core.parameters.inventory.Environment;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of the parsed and initialized deploy inventories, shared by all definitions of the same storage,
+ * since the definitions are recreated whenever their job is reloaded.
+ *
+ * The cached inventories must not be modified. An entry is only hit with the environment it was initialized with.
+ */
+class DeployInventoryCache {
+
+    private static final int MAX_ENTRIES = 256;
+
+    private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * increased on every invalidation, so that an inventory loaded before it is not put into the cache
+     */
+    private static long generation;
+
+    private DeployInventoryCache() {
+    }
+
+    static synchronized DeployInventory get(String key, Environment env) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.env != env) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.inventory;
+    }
+
+    static synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param loadedAt the generation when the inventory began to be loaded
+     */
+    static synchronized void put(String key, Environment env, DeployInventory inventory, long loadedAt) {
+        if (loadedAt == generation) {
+            entries.put(key, new Entry(env, inventory));
+        }
+    }
+
+    static synchronized void invalidate(String key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    private static class Entry {
+        private final Environment env;
+        private final DeployInventory inventory;
+
+        private Entry(Environment env, DeployInventory inventory) {
+            this.env = env;
+            this.inventory = inventory;
+        }
+    }
+}
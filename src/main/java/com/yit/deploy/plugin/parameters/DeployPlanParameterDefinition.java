@@ -1,6 +1,10 @@
 package com.yit.deploy.plugin.parameters;
 
 import com.google.common.base.Strings;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.yit.deploy.core.exceptions.DeployException;
 import com.yit.deploy.core.function.Lambda;
 import com.yit.deploy.core.model.DeployModelTable;
@@ -8,9 +12,15 @@ import com.yit.deploy.core.model.DeployResponse;
 import com.yit.deploy.core.model.StatusCode;
 import com.yit.deploy.core.parameters.inventory.*;
 import com.yit.deploy.core.utils.Utils;
+import com.yit.deploy.plugin.parameters.storage.InventoryMetadata;
+import com.yit.deploy.plugin.parameters.storage.InventoryMetadataIndex;
+import com.yit.deploy.plugin.parameters.storage.InventoryStore;
+import com.yit.deploy.plugin.parameters.storage.InventoryStores;
+import com.yit.deploy.plugin.parameters.storage.SnapshotStore;
 import com.yit.deploy.plugin.steps.DeployGlobalConfiguration;
+import com.yit.deploy.plugin.util.JsonMerge;
+import com.yit.deploy.plugin.util.JsonPatch;
 import hudson.Extension;
-import hudson.FilePath;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParameterValue;
 import hudson.model.User;
@@ -20,6 +30,7 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -27,10 +38,13 @@ import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +54,11 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
 
     private static final String READONLY_INVENTORY_NAME = "default";
 
+    /**
+     * fields of the inventory maintained by server, which are not merged
+     */
+    private static final Set<String> SERVER_FIELDS = new HashSet<>(Arrays.asList("version", "changes", "updateDate"));
+
     private String envName;
     private String defaultInventoryName;
 
@@ -92,8 +111,14 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
             disableSharing(inventory.getName());
         }
 
-        if (inventory.getName().equals(getActiveInventoryName())) {
-            clearActiveInventoryName();
+        Lock headLock = getHeadLock();
+        headLock.lock();
+        try {
+            if (inventory.getName().equals(getActiveInventoryName())) {
+                clearActiveInventoryName();
+            }
+        } finally {
+            headLock.unlock();
         }
 
         dataStorage.saveLastDeployInventory(inventory);
@@ -142,11 +167,11 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
 
     private void saveDeployInventorySnapshot(DeployInventory inventory) {
         inventory = inventory.dump();
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-        String newInventoryName = "snapshot-" + df.format(new Date());
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        String newInventoryName = InventoryStores.SNAPSHOT_PREFIX + df.format(new Date());
         inventory.setName(newInventoryName);
         inventory.setSharedBy(null); // disable sharing properties since we are just saving a snapshot
-        dataStorage.saveDeployInventory(inventory);
+        dataStorage.saveSnapshot(inventory);
     }
 
     @JavaScriptMethod
@@ -154,27 +179,54 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
         return dataStorage.listInventoryNames();
     }
 
+    /**
+     * list the saved inventories from the metadata index, the most recently saved first
+     *
+     * @param query part of the names to match ignoring case, empty to match all
+     * @param includeSnapshots whether to list the snapshots taken by builds
+     * @param limit max number of the inventories returned, 0 for no limit
+     */
+    @JavaScriptMethod
+    public InventoryMetadataIndex.Page listSavedInventories(String query, boolean includeSnapshots, int offset, int limit) {
+        return dataStorage.queryInventories(query, includeSnapshots, offset, limit);
+    }
+
     @JavaScriptMethod
     public DeployInventory httpGetDeployInventory(String inventoryName) {
-        return getDeployInventory(inventoryName);
+        return loadDeployInventory(inventoryName);
+    }
+
+    /**
+     * subscribe the changes of the inventory after the given version, see {@link DeployPlanPollAction#doEvents}
+     */
+    void subscribeDeployInventory(String inventoryName, long version, InventoryEvents.Subscriber subscriber) {
+        long currentVersion = loadDeployInventory(inventoryName).getVersion();
+        InventoryEvents.subscribe(dataStorage.getCacheKey(inventoryName), version, currentVersion, subscriber);
     }
 
+    /**
+     * blocking version of {@link DeployPlanPollAction}, used if the servlet container does not support async requests
+     */
     @JavaScriptMethod
     public DeployInventory httpPollDeployInventory(String inventoryName, long requestedVersion, long timeout) {
-        long start = new Date().getTime();
-        while (true) {
-            DeployInventory inventory = getDeployInventory(inventoryName);
-            if (inventory.getVersion() >= requestedVersion) return inventory;
-            long left = timeout - (new Date().getTime() - start);
-            if (left <= 0) return new DeployInventory();
-            try {
-                synchronized (this) {
-                    wait(left < 1000 ? left : 1000);
-                }
-            } catch (InterruptedException e) {
-                throw new IllegalStateException(e);
-            }
+        try {
+            return watchDeployInventory(inventoryName, requestedVersion, timeout).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return completed with the inventory once its version reaches the requested version,
+     * or with an empty inventory if timed out
+     */
+    public CompletableFuture<DeployInventory> watchDeployInventory(String inventoryName, long requestedVersion, long timeout) {
+        CompletableFuture<DeployInventory> future = InventoryWatchers.watch(dataStorage.getCacheKey(inventoryName), requestedVersion, timeout);
+        DeployInventory inventory = loadDeployInventory(inventoryName);
+        if (inventory.getVersion() >= requestedVersion) {
+            future.complete(inventory);
         }
+        return future;
     }
 
     @JavaScriptMethod
@@ -187,11 +239,56 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
 
             Environment environment = getEnvironment();
             inventory.initialize(environment);
-            saveDeployInventory(inventory, changeId);
+            DeployInventory saved = saveDeployInventory(inventory, changeId);
+
+            return new DeployResponse<>(saved.getChanges());
+        } catch (DeployException e) {
+            return new DeployResponse<>(e.getStatusCode());
+        }
+    }
+
+    /**
+     * apply the json patch operations (see {@link JsonPatch}) to the stored inventory,
+     * so that the editor only sends what is changed instead of the whole inventory
+     *
+     * @param baseVersion version of the inventory which the patch is made against
+     */
+    @JavaScriptMethod
+    public DeployResponse<List<InventoryChange>> httpPatchDeployInventory(String inventoryName, long baseVersion, String patchJson, String changeId) {
+        if (READONLY_INVENTORY_NAME.equals(inventoryName)) {
+            return new DeployResponse<>(new StatusCode(400, "cannot update readonly inventory " + READONLY_INVENTORY_NAME));
+        }
+
+        Lock lock = getInventoryLock(inventoryName);
+        lock.lock();
+        try {
+            DeployInventory old = loadDeployInventory(inventoryName);
+            // a patch against an older version is applied to that version, and then merged onto the stored one
+            String baseJson = baseVersion == old.getVersion() ? old.toJson() : InventoryHistory.get(dataStorage.getCacheKey(inventoryName), baseVersion);
+            if (baseJson == null) {
+                throw new DeployException(410, "the specified version " + baseVersion + " is not match with stored version " + old.getVersion());
+            }
+
+            JsonElement tree = new JsonParser().parse(baseJson);
+            try {
+                JsonPatch.apply(tree, new JsonParser().parse(patchJson).getAsJsonArray());
+            } catch (IllegalArgumentException | IllegalStateException | JsonParseException e) {
+                return new DeployResponse<>(new StatusCode(422, "could not apply the patch: " + e.getMessage()));
+            }
 
-            return new DeployResponse<>(inventory.getChanges());
+            DeployInventory inventory = new DeployInventory().fromJson(tree.toString());
+            if (!inventoryName.equals(inventory.getName())) {
+                return new DeployResponse<>(new StatusCode(422, "the name of the inventory could not be patched"));
+            }
+            inventory.setVersion(baseVersion);
+            inventory.initialize(getEnvironment());
+            DeployInventory saved = saveDeployInventoryLocked(inventory, old, changeId);
+
+            return new DeployResponse<>(saved.getChanges());
         } catch (DeployException e) {
             return new DeployResponse<>(e.getStatusCode());
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -230,7 +327,17 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
     }
 
     @JavaScriptMethod
-    public synchronized void updateDeployItem(String projectName, DeployItem deployItem, int planIndex, String inventoryName) {
+    public void updateDeployItem(String projectName, DeployItem deployItem, int planIndex, String inventoryName) {
+        Lock lock = getInventoryLock(inventoryName);
+        lock.lock();
+        try {
+            updateDeployItemLocked(projectName, deployItem, planIndex, inventoryName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateDeployItemLocked(String projectName, DeployItem deployItem, int planIndex, String inventoryName) {
         DeployInventory inventory = getDeployInventory(inventoryName);
         while (planIndex >= inventory.getPlans().size()) {
             DeployPlan plan = new DeployPlan();
@@ -295,13 +402,40 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
         return name;
     }
 
+    /**
+     * @return a copy of the inventory, which could be modified by the caller
+     */
     public DeployInventory getDeployInventory(String inventoryName) {
         Environment env = getEnvironment();
-        DeployInventory inventory = dataStorage.loadDeployInventory(inventoryName);
+        DeployInventory inventory = loadStoredDeployInventory(inventoryName, env);
         if (inventory == null) {
-            inventory = getPredefinedInventory(inventoryName, env);
-        } else {
+            return getPredefinedInventory(inventoryName, env);
+        }
+        inventory = inventory.dump();
+        inventory.initialize(env);
+        return inventory;
+    }
+
+    /**
+     * @return the inventory shared by all readers, which must not be modified
+     */
+    private DeployInventory loadDeployInventory(String inventoryName) {
+        Environment env = getEnvironment();
+        DeployInventory inventory = loadStoredDeployInventory(inventoryName, env);
+        return inventory == null ? getPredefinedInventory(inventoryName, env) : inventory;
+    }
+
+    private DeployInventory loadStoredDeployInventory(String inventoryName, Environment env) {
+        String key = dataStorage.getCacheKey(inventoryName);
+        DeployInventory inventory = DeployInventoryCache.get(key, env);
+        if (inventory != null) {
+            return inventory;
+        }
+        long generation = DeployInventoryCache.getGeneration();
+        inventory = dataStorage.loadDeployInventory(inventoryName);
+        if (inventory != null) {
             inventory.initialize(env);
+            DeployInventoryCache.put(key, env, inventory, generation);
         }
         return inventory;
     }
@@ -321,7 +455,7 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
     }
 
     public void saveDeployInventory(DeployInventory inventory) {
-        saveDeployInventory(inventory, getDeployInventory(inventory.getName()));
+        saveDeployInventory(inventory, UUID.randomUUID().toString());
     }
 
     public void saveDeployInventory(DeployInventory inventory, DeployInventory old) {
@@ -342,11 +476,36 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
         return getEnvironment().toJson();
     }
 
-    public synchronized void saveDeployInventory(DeployInventory inventory, String changeId) {
-        saveDeployInventory(inventory, getDeployInventory(inventory.getName()), changeId);
+    /**
+     * @return the saved inventory, which is merged with the stored one if the inventory is changed against an older version
+     */
+    public DeployInventory saveDeployInventory(DeployInventory inventory, String changeId) {
+        Lock lock = getInventoryLock(inventory.getName());
+        lock.lock();
+        try {
+            // the stored version is read in the lock, so that the version check is not raced by other saves
+            return saveDeployInventoryLocked(inventory, loadDeployInventory(inventory.getName()), changeId);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private synchronized void saveDeployInventory(DeployInventory inventory, DeployInventory old, String changeId) {
+    private void saveDeployInventory(DeployInventory inventory, DeployInventory old, String changeId) {
+        Lock lock = getInventoryLock(inventory.getName());
+        lock.lock();
+        try {
+            saveDeployInventoryLocked(inventory, old, changeId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private DeployInventory saveDeployInventoryLocked(DeployInventory inventory, DeployInventory old, String changeId) {
+
+        // merged first, so that the sharing is checked and applied on what is going to be saved
+        if (inventory.getVersion() != old.getVersion()) {
+            inventory = mergeConcurrentChanges(inventory, old);
+        }
 
         String currentUser = getCurrentUserID();
         String oldSharedBy = Lambda.empty2null(old.getSharedBy());
@@ -376,23 +535,25 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
             }
         }
 
-        if (oldSharedBy == null && newSharedBy != null) { // start sharing
-            if (getActiveInventoryName() == null) {
-                setActiveInventoryName(inventory.getName());
-            }
-        } else if (oldSharedBy != null && newSharedBy == null) {
-            if (inventory.getName().equals(getActiveInventoryName())) {
-                clearActiveInventoryName();
+        Lock headLock = getHeadLock();
+        headLock.lock();
+        try {
+            if (oldSharedBy == null && newSharedBy != null) { // start sharing
+                if (getActiveInventoryName() == null) {
+                    setActiveInventoryName(inventory.getName());
+                }
+            } else if (oldSharedBy != null && newSharedBy == null) {
+                if (inventory.getName().equals(getActiveInventoryName())) {
+                    clearActiveInventoryName();
+                }
             }
-        }
-
-        if (inventory.getVersion() != old.getVersion()) {
-            throw new DeployException(410, "the specified version " + inventory.getVersion() + " is not match with stored version " + old.getVersion());
+        } finally {
+            headLock.unlock();
         }
 
         boolean changed = inventory.recordChange(old, currentUser, changeId);
         if (!changed) {
-            return;
+            return inventory;
         }
 
         inventory.setUpdateDate(Utils.formatDate(new Date()));
@@ -400,14 +561,81 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
 
         dataStorage.saveDeployInventory(inventory);
         LOGGER.info("deploy inventory " + inventory.getName() + " is saved with version " + inventory.getVersion());
-        notifyAll();
+        String name = inventory.getName();
+        InventoryWatchers.notify(dataStorage.getCacheKey(name), inventory.getVersion(), () -> loadDeployInventory(name));
+        InventoryEvents.publish(dataStorage.getCacheKey(name), inventory.getVersion(), Lambda.empty2null(inventory.getSharedBy()), inventory.getChanges());
+        return inventory;
     }
 
-    public synchronized void disableSharing(String inventoryName) {
-        DeployInventory inventory = dataStorage.loadDeployInventory(inventoryName);
-        if (inventory == null) return;
-        inventory.setSharedBy(null);
-        saveDeployInventory(inventory);
+    /**
+     * merge the changes made against an older version onto the stored version.
+     *
+     * the older version is looked up in {@link InventoryHistory}, which is kept in memory only,
+     * so the changes made on a version loaded before a restart, or evicted from the history since, are rejected
+     * and the editor has to reload the inventory.
+     *
+     * @throws DeployException 410 if the older version is no longer kept, or both sides changed the same field
+     */
+    private DeployInventory mergeConcurrentChanges(DeployInventory inventory, DeployInventory old) {
+        String base = InventoryHistory.get(dataStorage.getCacheKey(inventory.getName()), inventory.getVersion());
+        if (base == null || inventory.getVersion() > old.getVersion()) {
+            throw new DeployException(410, "the specified version " + inventory.getVersion() + " is not match with stored version " + old.getVersion()
+                + (base == null ? ", and it is no longer kept to merge the changes, please reload the inventory" : ""));
+        }
+
+        JsonParser parser = new JsonParser();
+        JsonObject theirs = parser.parse(old.toJson()).getAsJsonObject();
+        JsonObject merged;
+        try {
+            merged = JsonMerge.merge(
+                withoutServerFields(parser.parse(base).getAsJsonObject()),
+                withoutServerFields(parser.parse(inventory.toJson()).getAsJsonObject()),
+                withoutServerFields(theirs)
+            ).getAsJsonObject();
+        } catch (JsonMerge.ConflictException e) {
+            throw new DeployException(410, "the changes made on version " + inventory.getVersion() + " conflict with stored version " + old.getVersion() + ", " + e.getMessage());
+        }
+        for (String field : SERVER_FIELDS) {
+            if (theirs.has(field)) {
+                merged.add(field, theirs.get(field));
+            }
+        }
+
+        DeployInventory result = new DeployInventory().fromJson(merged.toString());
+        result.initialize(getEnvironment());
+        LOGGER.info("deploy inventory " + inventory.getName() + " changed on version " + inventory.getVersion() + " is merged onto version " + old.getVersion());
+        return result;
+    }
+
+    private static JsonObject withoutServerFields(JsonObject json) {
+        JsonObject copy = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+            if (!SERVER_FIELDS.contains(entry.getKey())) {
+                copy.add(entry.getKey(), entry.getValue());
+            }
+        }
+        return copy;
+    }
+
+    public void disableSharing(String inventoryName) {
+        Lock lock = getInventoryLock(inventoryName);
+        lock.lock();
+        try {
+            DeployInventory inventory = dataStorage.loadDeployInventory(inventoryName);
+            if (inventory == null) return;
+            inventory.setSharedBy(null);
+            saveDeployInventory(inventory);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Lock getInventoryLock(String inventoryName) {
+        return InventoryLocks.forInventory(dataStorage.getCacheKey(inventoryName));
+    }
+
+    private Lock getHeadLock() {
+        return InventoryLocks.forHead(dataStorage.getStorageRootPathString());
     }
 
     public String getDefaultInventoryName() {
@@ -458,8 +686,6 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
         private String jobName;
         private String parameterName;
 
-        private static final String ACTIVE_INVENTORY_FILE_NAME = "HEAD";
-
         private DataStorage(String jobName, String parameterName) {
             this.jobName = jobName;
             this.parameterName = parameterName;
@@ -467,32 +693,16 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
 
         private String getActiveInventoryName() {
             try {
-                FilePath path = getStorageRootPath().child(ACTIVE_INVENTORY_FILE_NAME);
-                if (path.exists() && !path.isDirectory()) {
-                    String name = path.readToString();
-                    if (name != null && name.isEmpty()) name = null;
-                    return name;
-                }
-                return null;
-            } catch (IOException | InterruptedException e) {
+                return getStore().getHead();
+            } catch (IOException e) {
                 throw new IllegalStateException(e);
             }
         }
 
         private void setActiveInventoryName(String name) {
             try {
-                FilePath path = getStorageRootPath().child(ACTIVE_INVENTORY_FILE_NAME);
-                if (path.exists()) {
-                    if (path.isDirectory()) {
-                        path.deleteRecursive();
-                    }
-                }
-                if (name == null || name.isEmpty()) {
-                    path.delete();
-                } else {
-                    path.write(name, Utils.DefaultCharset.name());
-                }
-            } catch (IOException | InterruptedException e) {
+                getStore().setHead(name);
+            } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
@@ -506,23 +716,16 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
         }
 
         private List<String> listInventoryNames() {
-            FilePath rootPath = getStorageRootPath();
+            List<String> names = new ArrayList<>();
+            for (InventoryMetadata metadata : queryInventories(null, true, 0, 0).getItems()) {
+                names.add(metadata.getName());
+            }
+            return names;
+        }
+
+        private InventoryMetadataIndex.Page queryInventories(String query, boolean includeSnapshots, int offset, int limit) {
             try {
-                List<FilePath> files = rootPath.list();
-                files.sort((o1, o2) -> {
-                    try {
-                        return Long.compare(o2.lastModified(), o1.lastModified());
-                    } catch (IOException | InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
-                List<String> names = new ArrayList<>();
-                for (FilePath file : files) {
-                    if(file.getName().endsWith(".json")) {
-                        names.add(file.getBaseName());
-                    }
-                }
-                return names;
+                return getMetadata().query(query, includeSnapshots, offset, limit);
             } catch (Exception e) {
                 LOGGER.warning("list deploy inventories error: " + e);
                 throw new RuntimeException(e);
@@ -531,10 +734,12 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
 
         private void deleteDeployInventory(String inventoryName) {
             try {
-                FilePath path = getStoragePath(inventoryName);
-                if (path.exists()) {
-                    path.delete();
-                }
+                getStore().delete(inventoryName);
+                getSnapshots().delete(inventoryName);
+                getMetadata().remove(Collections.singleton(inventoryName));
+                DeployInventoryCache.invalidate(getCacheKey(inventoryName));
+                InventoryHistory.remove(getCacheKey(inventoryName));
+                InventoryEvents.remove(getCacheKey(inventoryName));
             } catch (Exception e) {
                 LOGGER.warning("delete deploy inventory " + inventoryName + " error: " + e);
                 if (e instanceof RuntimeException) {
@@ -550,10 +755,14 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
 
         private DeployInventory loadDeployInventory(String inventoryName, String fileBaseName) {
             try {
-                FilePath path = getStoragePath(fileBaseName);
-                if (path.exists()) {
-                    String json = path.readToString();
-                    return new DeployInventory().fromJson(json);
+                String json = getStore().load(fileBaseName);
+                if (json == null) {
+                    json = getSnapshots().load(fileBaseName);
+                }
+                if (json != null) {
+                    DeployInventory inventory = new DeployInventory().fromJson(json);
+                    InventoryHistory.record(getCacheKey(fileBaseName), inventory.getVersion(), json);
+                    return inventory;
                 }
             } catch (Exception e) {
                 LOGGER.warning("load deploy inventory error: " + e);
@@ -569,32 +778,77 @@ public class DeployPlanParameterDefinition extends ParameterDefinition implement
         private void saveDeployInventory(DeployInventory inventory, String fileBaseName) {
             String json = inventory.toJson();
             try {
-                FilePath path = getStoragePath(fileBaseName);
-                path.write(json, "UTF-8");
+                getStore().save(fileBaseName, json);
+                // invalidate after the save, so that a concurrent load of the old content is not cached
+                DeployInventoryCache.invalidate(getCacheKey(fileBaseName));
+                InventoryHistory.record(getCacheKey(fileBaseName), inventory.getVersion(), json);
             } catch (Exception e) {
                 LOGGER.warning("save deploy inventory error: " + e);
                 throw new RuntimeException(e);
             }
+            putMetadata(fileBaseName, InventoryMetadata.NAMED, json);
         }
 
-        private FilePath getStoragePath(String inventoryName) {
-            return getStorageRootPath().child(inventoryName + ".json");
-        }
-
-        private FilePath getStorageRootPath() {
-            FilePath root = Jenkins.get().getRootPath().child(getStorageRootPathString());
+        /**
+         * save the snapshot under its name, or suffixed by a number if the name is taken,
+         * and apply the retention of the snapshots
+         */
+        private void saveSnapshot(DeployInventory inventory) {
             try {
-                if (!root.exists()) {
-                    root.mkdirs();
+                SnapshotStore snapshots = getSnapshots();
+                String json = inventory.toJson();
+                String name = snapshots.save(inventory.getName(), json, System.currentTimeMillis());
+                DeployInventoryCache.invalidate(getCacheKey(name));
+                putMetadata(name, InventoryMetadata.SNAPSHOT, json);
+                DeployGlobalConfiguration config = DeployGlobalConfiguration.get();
+                List<String> dropped = snapshots.gcIfDue(config.getSnapshotRetentionDays(), config.getSnapshotMaxCount());
+                if (!dropped.isEmpty()) {
+                    getMetadata().remove(dropped);
+                    // dropped the same way as deleted ones
+                    for (String droppedName : dropped) {
+                        DeployInventoryCache.invalidate(getCacheKey(droppedName));
+                        InventoryHistory.remove(getCacheKey(droppedName));
+                        InventoryEvents.remove(getCacheKey(droppedName));
+                    }
                 }
-                return root;
-            } catch (RuntimeException e) {
-                throw e;
             } catch (Exception e) {
+                LOGGER.warning("save deploy inventory snapshot error: " + e);
                 throw new RuntimeException(e);
             }
         }
 
+        /**
+         * called after the inventory is saved, a failure is only logged,
+         * since the index is reconciled with the stores when it is opened next time
+         */
+        private void putMetadata(String name, String kind, String json) {
+            try {
+                getMetadata().put(name, kind, json, System.currentTimeMillis());
+            } catch (Exception e) {
+                LOGGER.warning("update metadata of deploy inventory " + name + " error: " + e);
+            }
+        }
+
+        private InventoryStore getStore() throws IOException {
+            return InventoryStores.get(getStorageRoot());
+        }
+
+        private SnapshotStore getSnapshots() throws IOException {
+            return InventoryStores.getSnapshots(getStorageRoot());
+        }
+
+        private InventoryMetadataIndex getMetadata() throws IOException {
+            return InventoryStores.getMetadata(getStorageRoot());
+        }
+
+        private File getStorageRoot() {
+            return new File(Jenkins.get().getRootDir(), getStorageRootPathString());
+        }
+
+        private String getCacheKey(String inventoryName) {
+            return getStorageRootPathString() + "/" + inventoryName;
+        }
+
         private String getStorageRootPathString() {
             return "deploy-plan-parameter/storage/" + jobName + "/parameters/" + parameterName + "/inventories";
         }
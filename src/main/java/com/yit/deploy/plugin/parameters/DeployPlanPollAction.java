@@ -0,0 +1,238 @@
+package com.yit.deploy.plugin.parameters;
+
+import com.yit.deploy.core.parameters.inventory.DeployInventory;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.annotation.CheckForNull;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-poll of the deploy inventories, served as {@code /deploy-plan/poll},
+ * and the stream of their changes as server-sent events, served as {@code /deploy-plan/events}.
+ *
+ * The request is suspended by an async context, so no request thread is held while waiting for the inventory to change.
+ * If the container does not support async requests, the thread is blocked until the poll is completed instead,
+ * and the event stream is not available.
+ */
+@Extension
+public class DeployPlanPollAction implements RootAction {
+
+    private static final Logger LOGGER = Logger.getLogger(DeployPlanPollAction.class.getName());
+
+    private static final long MAX_TIMEOUT = 60000;
+
+    @CheckForNull
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @CheckForNull
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @CheckForNull
+    @Override
+    public String getUrlName() {
+        return "deploy-plan";
+    }
+
+    /**
+     * @param job name of the job which the deploy plan parameter is defined in
+     * @param parameter name of the deploy plan parameter
+     * @param inventory name of the inventory
+     * @param version the requested version, the poll is completed once the inventory reaches it
+     * @param timeout in milliseconds, an empty inventory is returned if timed out
+     */
+    public void doPoll(StaplerRequest req, StaplerResponse rsp,
+                       @QueryParameter String job, @QueryParameter String parameter, @QueryParameter String inventory,
+                       @QueryParameter long version, @QueryParameter long timeout) throws IOException {
+
+        DeployPlanParameterDefinition definition = findDefinition(job, parameter);
+        if (definition == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "deploy plan parameter " + parameter + " is not found in job " + job);
+            return;
+        }
+
+        CompletableFuture<DeployInventory> future = definition.watchDeployInventory(
+            inventory, version, Math.max(0, Math.min(timeout, MAX_TIMEOUT))
+        );
+
+        if (!req.isAsyncSupported()) {
+            try {
+                writeInventory(rsp, future.get());
+            } catch (InterruptedException | ExecutionException e) {
+                LOGGER.log(Level.WARNING, "failed to poll deploy inventory " + inventory, e);
+                rsp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            }
+            return;
+        }
+
+        AsyncContext context = req.startAsync();
+        // the poll is timed out by the watcher itself
+        context.setTimeout(0);
+        future.whenComplete((result, e) -> {
+            HttpServletResponse response = (HttpServletResponse) context.getResponse();
+            try {
+                if (e == null) {
+                    writeInventory(response, result);
+                } else {
+                    LOGGER.log(Level.WARNING, "failed to poll deploy inventory " + inventory, e);
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.log(Level.FINE, "failed to respond the poll of deploy inventory " + inventory, ex);
+            } finally {
+                context.complete();
+            }
+        });
+    }
+
+    /**
+     * stream the changes of the inventory after the given version, or after the version in the Last-Event-ID header
+     * if the browser is reconnecting
+     */
+    public void doEvents(StaplerRequest req, StaplerResponse rsp,
+                         @QueryParameter String job, @QueryParameter String parameter, @QueryParameter String inventory,
+                         @QueryParameter long version) throws IOException {
+
+        DeployPlanParameterDefinition definition = findDefinition(job, parameter);
+        if (definition == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "deploy plan parameter " + parameter + " is not found in job " + job);
+            return;
+        }
+        if (!req.isAsyncSupported()) {
+            // the editor falls back to polling
+            rsp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "async requests are not supported");
+            return;
+        }
+
+        String lastEventId = req.getHeader("Last-Event-ID");
+        if (lastEventId != null && lastEventId.matches("\\d+")) {
+            version = Long.parseLong(lastEventId);
+        }
+
+        rsp.setContentType("text/event-stream; charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache");
+        rsp.setHeader("X-Accel-Buffering", "no");
+
+        AsyncContext context = req.startAsync();
+        context.setTimeout(0);
+        EventStream stream = new EventStream(context);
+        context.addListener(stream);
+        stream.send("retry: 3000\n\n");
+
+        definition.subscribeDeployInventory(inventory, version, stream);
+    }
+
+    private static void writeInventory(HttpServletResponse response, DeployInventory inventory) throws IOException {
+        response.setContentType("application/json; charset=UTF-8");
+        response.getWriter().write(inventory.toJson());
+        response.flushBuffer();
+    }
+
+    /**
+     * writes the events to the response one after another out of the publishing thread, since the client may be slow
+     */
+    private static class EventStream implements InventoryEvents.Subscriber, AsyncListener {
+        private final AsyncContext context;
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private volatile boolean closed;
+
+        private EventStream(AsyncContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public synchronized void send(String message) {
+            if (!closed) {
+                tail = tail.thenRunAsync(() -> write(message), Computer.threadPoolForRemoting);
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        private void write(String message) {
+            if (closed) {
+                return;
+            }
+            try {
+                ServletOutputStream out = context.getResponse().getOutputStream();
+                out.write(message.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.FINE, "deploy inventory event stream is closed", e);
+                close();
+            }
+        }
+
+        private void close() {
+            closed = true;
+            try {
+                context.complete();
+            } catch (IllegalStateException e) {
+                // already completed
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            closed = true;
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    static DeployPlanParameterDefinition findDefinition(String jobName, String parameterName) {
+        if (jobName == null || parameterName == null) {
+            return null;
+        }
+        // checks the READ permission of the job
+        Job<?, ?> job = Jenkins.get().getItemByFullName(jobName, Job.class);
+        if (job == null) {
+            return null;
+        }
+        ParametersDefinitionProperty property = job.getProperty(ParametersDefinitionProperty.class);
+        if (property == null) {
+            return null;
+        }
+        ParameterDefinition definition = property.getParameterDefinition(parameterName);
+        return definition instanceof DeployPlanParameterDefinition ? (DeployPlanParameterDefinition) definition : null;
+    }
+}
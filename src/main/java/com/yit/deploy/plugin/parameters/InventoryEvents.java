@@ -0,0 +1,196 @@
+package com.yit.deploy.plugin.parameters;
+
+import com.google.gson.Gson;
+import jenkins.util.Timer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-sent events of the deploy inventory changes, keyed by the same key as {@link DeployInventoryCache}.
+ *
+ * The recent events of each inventory are kept in a ring buffer, so that a subscriber reconnecting with the last
+ * version it received catches up with the missed changes. If they are no longer buffered, a reset event is sent,
+ * telling the subscriber to fetch the whole inventory instead.
+ *
+ * The channel of an inventory is dropped by the heartbeat once it has no subscribers left, which also drops its buffer,
+ * and when the inventory is deleted.
+ */
+class InventoryEvents {
+
+    private static final int BUFFER_SIZE = 64;
+    private static final long HEARTBEAT_INTERVAL = 20000;
+
+    private static final Gson GSON = new Gson();
+
+    private static final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    private static volatile boolean heartbeatScheduled;
+
+    private InventoryEvents() {
+    }
+
+    /**
+     * receives the formatted events, which must not block
+     */
+    interface Subscriber {
+        void send(String message);
+
+        boolean isClosed();
+    }
+
+    static void publish(String key, long version, String sharedBy, List<?> changes) {
+        scheduleHeartbeat();
+        String message = format(version, new Event(version, sharedBy, changes, false));
+        while (true) {
+            Channel channel = channels.computeIfAbsent(key, k -> new Channel());
+            synchronized (channel) {
+                if (channel.removed) {
+                    continue;
+                }
+                channel.buffer.addLast(new BufferedEvent(version, message));
+                while (channel.buffer.size() > BUFFER_SIZE) {
+                    channel.buffer.removeFirst();
+                }
+                channel.send(message);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param lastVersion the last version received by the subscriber
+     * @param currentVersion the version currently stored
+     */
+    static void subscribe(String key, long lastVersion, long currentVersion, Subscriber subscriber) {
+        scheduleHeartbeat();
+        while (true) {
+            Channel channel = channels.computeIfAbsent(key, k -> new Channel());
+            synchronized (channel) {
+                if (channel.removed) {
+                    continue;
+                }
+                subscribe(channel, lastVersion, currentVersion, subscriber);
+                return;
+            }
+        }
+    }
+
+    /**
+     * called with the lock of the channel held, so no event is published in between.
+     * the current version is read without the lock, so it may be older than the buffered events,
+     * which are replayed regardless of it.
+     */
+    private static void subscribe(Channel channel, long lastVersion, long currentVersion, Subscriber subscriber) {
+        BufferedEvent first = channel.buffer.peekFirst();
+        if (first != null && first.version <= lastVersion + 1) {
+            for (BufferedEvent event : channel.buffer) {
+                if (event.version > lastVersion) {
+                    subscriber.send(event.message);
+                }
+            }
+        } else {
+            // the missed changes are no longer buffered, or not published yet
+            long version = channel.buffer.isEmpty() ? currentVersion : Math.max(currentVersion, channel.buffer.peekLast().version);
+            if (lastVersion < version) {
+                subscriber.send(format(version, new Event(version, null, null, true)));
+            }
+        }
+        channel.subscribers.add(subscriber);
+    }
+
+    private static void scheduleHeartbeat() {
+        if (heartbeatScheduled) {
+            return;
+        }
+        synchronized (InventoryEvents.class) {
+            if (!heartbeatScheduled) {
+                Timer.get().scheduleAtFixedRate(InventoryEvents::heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+                heartbeatScheduled = true;
+            }
+        }
+    }
+
+    /**
+     * drop the channel of a deleted inventory, its subscribers receive no more events
+     */
+    static void remove(String key) {
+        Channel channel = channels.get(key);
+        if (channel != null) {
+            synchronized (channel) {
+                channel.removed = true;
+                channels.remove(key, channel);
+            }
+        }
+    }
+
+    /**
+     * keep the idle connections alive through the proxies, find out the closed ones,
+     * and drop the channels whose subscribers are all gone
+     */
+    private static void heartbeat() {
+        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+            Channel channel = entry.getValue();
+            synchronized (channel) {
+                channel.send(":\n\n");
+                if (channel.subscribers.isEmpty()) {
+                    channel.removed = true;
+                    channels.remove(entry.getKey(), channel);
+                }
+            }
+        }
+    }
+
+    private static String format(long version, Event event) {
+        return "id: " + version + "\nevent: change\ndata: " + GSON.toJson(event) + "\n\n";
+    }
+
+    private static class Channel {
+        private final Deque<BufferedEvent> buffer = new ArrayDeque<>();
+        private final List<Subscriber> subscribers = new ArrayList<>();
+
+        /**
+         * set once the channel is dropped from the map, so that it is created again by the next publisher or subscriber
+         */
+        private boolean removed;
+
+        private void send(String message) {
+            for (Iterator<Subscriber> iter = subscribers.iterator(); iter.hasNext(); ) {
+                Subscriber subscriber = iter.next();
+                if (subscriber.isClosed()) {
+                    iter.remove();
+                } else {
+                    subscriber.send(message);
+                }
+            }
+        }
+    }
+
+    private static class BufferedEvent {
+        private final long version;
+        private final String message;
+
+        private BufferedEvent(long version, String message) {
+            this.version = version;
+            this.message = message;
+        }
+    }
+
+    /**
+     * serialized as the data of the event
+     */
+    private static class Event {
+        private final long version;
+        private final String sharedBy;
+        private final List<?> changes;
+        private final boolean reset;
+
+        private Event(long version, String sharedBy, List<?> changes, boolean reset) {
+            this.version = version;
+            this.sharedBy = sharedBy;
+            this.changes = changes == null ? Collections.emptyList() : changes;
+            this.reset = reset;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.yit.deploy.plugin.parameters;
+
+import java.util.*;
+
+/**
+ * The json of the recent versions of the deploy inventories, keyed by the same key as {@link DeployInventoryCache},
+ * used as the base of the three-way merge when a save is made against an older version.
+ *
+ * Bounded by the number of versions kept per inventory and the total size of the json kept.
+ * It is not persisted, so after a restart only the versions loaded or saved since then could be merged onto.
+ */
+class InventoryHistory {
+
+    private static final int MAX_VERSIONS = 16;
+    private static final long MAX_TOTAL_CHARS = 16 * 1024 * 1024;
+
+    private static final LinkedHashMap<String, Deque<Version>> histories = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long totalChars;
+
+    private InventoryHistory() {
+    }
+
+    static synchronized void record(String key, long version, String json) {
+        Deque<Version> history = histories.computeIfAbsent(key, k -> new ArrayDeque<>());
+        for (Version v : history) {
+            if (v.version == version) {
+                return;
+            }
+        }
+        history.addLast(new Version(version, json));
+        totalChars += json.length();
+        while (history.size() > MAX_VERSIONS) {
+            totalChars -= history.removeFirst().json.length();
+        }
+
+        Iterator<Map.Entry<String, Deque<Version>>> iter = histories.entrySet().iterator();
+        while (totalChars > MAX_TOTAL_CHARS && iter.hasNext()) {
+            Map.Entry<String, Deque<Version>> eldest = iter.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            for (Version v : eldest.getValue()) {
+                totalChars -= v.json.length();
+            }
+            iter.remove();
+        }
+    }
+
+    /**
+     * @return null if the version is no longer kept
+     */
+    static synchronized String get(String key, long version) {
+        Deque<Version> history = histories.get(key);
+        if (history == null) {
+            return null;
+        }
+        for (Version v : history) {
+            if (v.version == version) {
+                return v.json;
+            }
+        }
+        return null;
+    }
+
+    static synchronized void remove(String key) {
+        Deque<Version> history = histories.remove(key);
+        if (history != null) {
+            for (Version v : history) {
+                totalChars -= v.json.length();
+            }
+        }
+    }
+
+    private static class Version {
+        private final long version;
+        private final String json;
+
+        private Version(long version, String json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.yit.deploy.plugin.parameters;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks of the deploy inventories, so that saving an inventory only blocks the saves of the same inventory
+ * (and of the few others on the same stripe). Shared by all definitions, since they are recreated on job reloads.
+ *
+ * The active inventory (HEAD) of a storage has its own stripes, which are always taken after the inventory lock,
+ * so the two never deadlock.
+ */
+class InventoryLocks {
+
+    private static final int STRIPES = 64;
+
+    private static final Lock[] inventoryLocks = createLocks();
+    private static final Lock[] headLocks = createLocks();
+
+    private InventoryLocks() {
+    }
+
+    /**
+     * @param key key of the inventory, the same as {@link DeployInventoryCache}
+     */
+    static Lock forInventory(String key) {
+        return inventoryLocks[indexOf(key)];
+    }
+
+    /**
+     * @param storage path of the storage
+     */
+    static Lock forHead(String storage) {
+        return headLocks[indexOf(storage)];
+    }
+
+    private static int indexOf(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % STRIPES;
+    }
+
+    private static Lock[] createLocks() {
+        Lock[] locks = new Lock[STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+}
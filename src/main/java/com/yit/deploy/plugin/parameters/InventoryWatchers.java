@@ -0,0 +1,82 @@
+package com.yit.deploy.plugin.parameters;
+
+import com.yit.deploy.core.parameters.inventory.DeployInventory;
+import jenkins.util.Timer;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Watchers waiting for the deploy inventories to reach a version, keyed by the same key as {@link DeployInventoryCache}.
+ * A watcher is completed with the inventory once it is saved with the requested version,
+ * or with an empty inventory once it is timed out. Only the watchers of the saved inventory are woken up.
+ */
+class InventoryWatchers {
+
+    private static final Map<String, Set<Watcher>> watchers = new ConcurrentHashMap<>();
+
+    private InventoryWatchers() {
+    }
+
+    /**
+     * register a watcher, the caller should check the current version after that, to not miss a save in between
+     */
+    static CompletableFuture<DeployInventory> watch(String key, long requestedVersion, long timeout) {
+        Watcher watcher = new Watcher(requestedVersion);
+        // add inside compute, so that it never goes to a set which has just been removed as empty
+        watchers.compute(key, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(watcher);
+            return set;
+        });
+
+        ScheduledFuture<?> timer = Timer.get().schedule(
+            () -> watcher.future.complete(new DeployInventory()), timeout, TimeUnit.MILLISECONDS
+        );
+        watcher.future.whenComplete((inventory, e) -> {
+            timer.cancel(false);
+            watchers.computeIfPresent(key, (k, set) -> {
+                set.remove(watcher);
+                return set.isEmpty() ? null : set;
+            });
+        });
+        return watcher.future;
+    }
+
+    /**
+     * complete the watchers of the inventory which are waiting for the saved version or lower
+     *
+     * @param loader loads the saved inventory, only called if any watcher is completed
+     */
+    static void notify(String key, long version, Supplier<DeployInventory> loader) {
+        Set<Watcher> set = watchers.get(key);
+        if (set == null) {
+            return;
+        }
+        DeployInventory inventory = null;
+        for (Watcher watcher : set) {
+            if (watcher.requestedVersion <= version) {
+                if (inventory == null) {
+                    inventory = loader.get();
+                }
+                watcher.future.complete(inventory);
+            }
+        }
+    }
+
+    private static class Watcher {
+        private final long requestedVersion;
+        private final CompletableFuture<DeployInventory> future = new CompletableFuture<>();
+
+        private Watcher(long requestedVersion) {
+            this.requestedVersion = requestedVersion;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.yit.deploy.plugin.parameters.storage;
+
+import hudson.util.AtomicFileWriter;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Stores each inventory as {@code <name>.json} and the active inventory name in {@code HEAD} under the root folder.
+ * Files are replaced atomically, so a crash never leaves a half written inventory.
+ */
+public class FileInventoryStore implements InventoryStore {
+
+    private static final String FILE_SUFFIX = ".json";
+    private static final String HEAD_FILE_NAME = "HEAD";
+
+    private final File root;
+
+    public FileInventoryStore(File root) {
+        this.root = root;
+    }
+
+    @Override
+    public String load(String name) throws IOException {
+        File file = getFile(name);
+        if (!file.isFile()) {
+            return null;
+        }
+        return FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void save(String name, String json) throws IOException {
+        write(getFile(name), json);
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        File file = getFile(name);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("failed to delete " + file);
+        }
+    }
+
+    @Override
+    public List<String> list() {
+        List<String> names = new ArrayList<>(listWithTimestamps().keySet());
+        Collections.reverse(names);
+        return names;
+    }
+
+    @Override
+    public Map<String, Long> listWithTimestamps() {
+        File[] files = root.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+        if (files == null) {
+            return Collections.emptyMap();
+        }
+        // stat each file once, rather than in every comparison of the sort
+        Map<String, Long> timestamps = new HashMap<>(files.length);
+        for (File file : files) {
+            timestamps.put(file.getName().substring(0, file.getName().length() - FILE_SUFFIX.length()), file.lastModified());
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(timestamps.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public String getHead() throws IOException {
+        File file = new File(root, HEAD_FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        String name = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+        return name.isEmpty() ? null : name;
+    }
+
+    @Override
+    public void setHead(String name) throws IOException {
+        File file = new File(root, HEAD_FILE_NAME);
+        if (file.isDirectory()) {
+            FileUtils.deleteDirectory(file);
+        }
+        if (name == null || name.isEmpty()) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("failed to delete " + file);
+            }
+        } else {
+            write(file, name);
+        }
+    }
+
+    /**
+     * @return the time the active inventory name is last changed, 0 if it is not set
+     */
+    long getHeadTimestamp() {
+        return new File(root, HEAD_FILE_NAME).lastModified();
+    }
+
+    private File getFile(String name) {
+        return new File(root, name + FILE_SUFFIX);
+    }
+
+    private void write(File file, String content) throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("failed to create folder " + root);
+        }
+        AtomicFileWriter writer = new AtomicFileWriter(file.toPath(), StandardCharsets.UTF_8);
+        try {
+            writer.write(content);
+            writer.commit();
+        } finally {
+            writer.abort();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.yit.deploy.plugin.parameters.storage;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * What the inventory lists need to know about a saved deploy inventory, without loading it.
+ */
+public class InventoryMetadata {
+
+    public static final String NAMED = "named";
+    public static final String SNAPSHOT = "snapshot";
+
+    private String name;
+    private String kind;
+    private long version;
+    private String updateDate;
+    private String sharedBy;
+    private int size;
+    private long timestamp;
+
+    public InventoryMetadata() {
+    }
+
+    /**
+     * @param json json of the inventory as stored
+     * @param timestamp time of the save
+     */
+    public static InventoryMetadata of(String name, String kind, String json, long timestamp) {
+        InventoryMetadata metadata = new InventoryMetadata();
+        metadata.name = name;
+        metadata.kind = kind;
+        metadata.size = json.length();
+        metadata.timestamp = timestamp;
+        JsonObject o = new JsonParser().parse(json).getAsJsonObject();
+        metadata.version = o.has("version") && !o.get("version").isJsonNull() ? o.get("version").getAsLong() : 0;
+        metadata.updateDate = getString(o, "updateDate");
+        metadata.sharedBy = getString(o, "sharedBy");
+        return metadata;
+    }
+
+    private static String getString(JsonObject o, String field) {
+        JsonElement e = o.get(field);
+        return e == null || e.isJsonNull() ? null : e.getAsString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return {@link #NAMED} or {@link #SNAPSHOT}
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getUpdateDate() {
+        return updateDate;
+    }
+
+    public String getSharedBy() {
+        return sharedBy;
+    }
+
+    /**
+     * @return length of the json
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,227 @@
+package com.yit.deploy.plugin.parameters.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import hudson.util.AtomicFileWriter;
+import jenkins.util.Timer;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The metadata of the inventories and snapshots under a root folder, kept in memory and in {@code METADATA},
+ * so that listing them does not read or stat every inventory.
+ *
+ * It is updated by the callers of the stores on each save and delete, and written to {@code METADATA} lazily,
+ * at most once per {@link #FLUSH_DELAY} and on shutdown, instead of on every change.
+ * On open it is reconciled with the stores, and only the inventories saved after their metadata are read,
+ * which covers the changes made by a former version, or not written yet when crashed.
+ */
+public class InventoryMetadataIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(InventoryMetadataIndex.class.getName());
+
+    private static final String INDEX_FILE_NAME = "METADATA";
+    private static final long FLUSH_DELAY = 10000;
+
+    private static final Gson GSON = new Gson();
+    private static final Type INDEX_TYPE = new TypeToken<List<InventoryMetadata>>() {}.getType();
+
+    private final File root;
+
+    /**
+     * name -> metadata, the oldest first
+     */
+    private final LinkedHashMap<String, InventoryMetadata> index = new LinkedHashMap<>();
+
+    /**
+     * changed since written
+     */
+    private boolean dirty;
+    private boolean flushScheduled;
+
+    public InventoryMetadataIndex(File root) {
+        this.root = root;
+    }
+
+    /**
+     * load the index and bring it up to date with the stores
+     */
+    public synchronized void open(InventoryStore store, SnapshotStore snapshots) throws IOException {
+        index.clear();
+        File file = new File(root, INDEX_FILE_NAME);
+        if (file.isFile()) {
+            List<InventoryMetadata> list = GSON.fromJson(FileUtils.readFileToString(file, StandardCharsets.UTF_8), INDEX_TYPE);
+            if (list != null) {
+                for (InventoryMetadata metadata : list) {
+                    index.put(metadata.getName(), metadata);
+                }
+            }
+        }
+
+        Map<String, InventoryMetadata> reconciled = new HashMap<>();
+        int read = 0;
+        // the named inventories are put last, since they are loaded first if the names clash
+        for (Map.Entry<String, Long> entry : snapshots.listWithTimestamps().entrySet()) {
+            if (reconcile(reconciled, entry.getKey(), InventoryMetadata.SNAPSHOT, entry.getValue(), snapshots::load)) {
+                read++;
+            }
+        }
+        for (Map.Entry<String, Long> entry : store.listWithTimestamps().entrySet()) {
+            if (reconcile(reconciled, entry.getKey(), InventoryMetadata.NAMED, entry.getValue(), store::load)) {
+                read++;
+            }
+        }
+
+        boolean changed = read > 0 || reconciled.size() != index.size();
+        List<InventoryMetadata> list = new ArrayList<>(reconciled.values());
+        list.sort(Comparator.comparingLong(InventoryMetadata::getTimestamp));
+        index.clear();
+        for (InventoryMetadata metadata : list) {
+            index.put(metadata.getName(), metadata);
+        }
+        if (changed) {
+            writeIndex();
+            LOGGER.info("reconciled the inventory metadata of " + root + ", " + read + " inventories read");
+        }
+    }
+
+    private interface Loader {
+        String load(String name) throws IOException;
+    }
+
+    /**
+     * @return true if the inventory is read
+     */
+    private boolean reconcile(Map<String, InventoryMetadata> reconciled, String name, String kind, long timestamp,
+                              Loader loader) throws IOException {
+        InventoryMetadata metadata = index.get(name);
+        if (metadata != null && metadata.getKind().equals(kind) && metadata.getTimestamp() >= timestamp) {
+            reconciled.put(name, metadata);
+            return false;
+        }
+        String json = loader.load(name);
+        if (json != null) {
+            try {
+                reconciled.put(name, InventoryMetadata.of(name, kind, json, timestamp));
+            } catch (RuntimeException e) {
+                LOGGER.warning("failed to read the metadata of inventory " + name + ": " + e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param timestamp time of the save, taken after it is done
+     */
+    public synchronized void put(String name, String kind, String json, long timestamp) throws IOException {
+        index.remove(name);
+        index.put(name, InventoryMetadata.of(name, kind, json, timestamp));
+        scheduleFlush();
+    }
+
+    public synchronized void remove(Collection<String> names) throws IOException {
+        boolean changed = false;
+        for (String name : names) {
+            changed |= index.remove(name) != null;
+        }
+        if (changed) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * write the index if changed since written
+     */
+    public synchronized void flush() throws IOException {
+        if (dirty) {
+            writeIndex();
+        }
+    }
+
+    private void scheduleFlush() {
+        dirty = true;
+        if (!flushScheduled) {
+            flushScheduled = true;
+            Timer.get().schedule(this::scheduledFlush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void scheduledFlush() {
+        flushScheduled = false;
+        try {
+            flush();
+        } catch (IOException e) {
+            // written by the next flush, or reconciled on the next open
+            LOGGER.warning("failed to write the inventory metadata of " + root + ": " + e);
+        }
+    }
+
+    /**
+     * @param query part of the names to match ignoring case, null or empty to match all
+     * @param offset number of the matched inventories to skip
+     * @param limit max number of the inventories returned, 0 for no limit
+     * @return the matched inventories, the most recently saved first
+     */
+    public synchronized Page query(String query, boolean includeSnapshots, int offset, int limit) {
+        String q = query == null ? "" : query.trim().toLowerCase();
+        List<InventoryMetadata> all = new ArrayList<>(index.values());
+        List<InventoryMetadata> items = new ArrayList<>();
+        int total = 0;
+        for (int i = all.size() - 1; i >= 0; i--) {
+            InventoryMetadata metadata = all.get(i);
+            if (!includeSnapshots && InventoryMetadata.SNAPSHOT.equals(metadata.getKind())) {
+                continue;
+            }
+            if (!q.isEmpty() && !metadata.getName().toLowerCase().contains(q)) {
+                continue;
+            }
+            if (total >= offset && (limit <= 0 || items.size() < limit)) {
+                items.add(metadata);
+            }
+            total++;
+        }
+        return new Page(total, items);
+    }
+
+    private void writeIndex() throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("failed to create folder " + root);
+        }
+        AtomicFileWriter writer = new AtomicFileWriter(new File(root, INDEX_FILE_NAME).toPath(), StandardCharsets.UTF_8);
+        try {
+            GSON.toJson(new ArrayList<>(index.values()), INDEX_TYPE, writer);
+            writer.commit();
+        } finally {
+            writer.abort();
+        }
+        dirty = false;
+    }
+
+    public static class Page {
+        private final int total;
+        private final List<InventoryMetadata> items;
+
+        private Page(int total, List<InventoryMetadata> items) {
+            this.total = total;
+            this.items = items;
+        }
+
+        /**
+         * @return number of all the matched inventories
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        public List<InventoryMetadata> getItems() {
+            return items;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.yit.deploy.plugin.parameters.storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage of the deploy inventories of a deploy plan parameter, each inventory is stored as json by its name.
+ */
+public interface InventoryStore {
+
+    /**
+     * @return null if not found
+     */
+    String load(String name) throws IOException;
+
+    /**
+     * save the inventory, which is durable once this method returns
+     */
+    void save(String name, String json) throws IOException;
+
+    void delete(String name) throws IOException;
+
+    /**
+     * @return names of all inventories, the most recently saved first
+     */
+    List<String> list() throws IOException;
+
+    /**
+     * @return name -> last saved time of all inventories, the oldest first
+     */
+    Map<String, Long> listWithTimestamps() throws IOException;
+
+    /**
+     * @return name of the active inventory, or null if not set
+     */
+    String getHead() throws IOException;
+
+    /**
+     * @param name null to clear the active inventory
+     */
+    void setHead(String name) throws IOException;
+}
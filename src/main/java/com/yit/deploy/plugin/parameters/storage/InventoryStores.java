@@ -0,0 +1,216 @@
+package com.yit.deploy.plugin.parameters.storage;
+
+import com.yit.deploy.plugin.steps.DeployGlobalConfiguration;
+import hudson.init.Terminator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Opens the inventory store of the backend selected in the global configuration.
+ * One store is shared by all parameters on the same root folder, since the log store keeps its index in memory.
+ */
+public class InventoryStores {
+
+    private static final Logger LOGGER = Logger.getLogger(InventoryStores.class.getName());
+
+    public static final String FILE = "file";
+    public static final String LOG = "log";
+
+    /**
+     * prefix of the names of the snapshots taken by builds
+     */
+    public static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private static final String SNAPSHOTS_FOLDER_NAME = "snapshots";
+
+    private static final Map<String, InventoryStore> stores = new ConcurrentHashMap<>();
+    private static final Map<String, SnapshotStore> snapshotStores = new ConcurrentHashMap<>();
+    private static final Map<String, InventoryMetadataIndex> metadataIndexes = new ConcurrentHashMap<>();
+
+    private InventoryStores() {
+    }
+
+    public static InventoryStore get(File root) throws IOException {
+        String backend = getBackend();
+        String key = backend + ":" + root.getAbsolutePath();
+        InventoryStore store = stores.get(key);
+        if (store != null) {
+            return store;
+        }
+        synchronized (stores) {
+            store = stores.get(key);
+            if (store == null) {
+                store = open(backend, root);
+                stores.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * get the snapshot store of the inventories under the root,
+     * the snapshots saved in the inventory store by the former versions are moved into it on first use
+     */
+    public static SnapshotStore getSnapshots(File root) throws IOException {
+        String key = root.getAbsolutePath();
+        SnapshotStore store = snapshotStores.get(key);
+        if (store != null) {
+            return store;
+        }
+        synchronized (snapshotStores) {
+            store = snapshotStores.get(key);
+            if (store == null) {
+                File snapshotRoot = new File(root, SNAPSHOTS_FOLDER_NAME);
+                boolean migrate = !SnapshotStore.exists(snapshotRoot);
+                store = new SnapshotStore(snapshotRoot);
+                if (migrate) {
+                    store.importSnapshots(get(root), SNAPSHOT_PREFIX);
+                }
+                snapshotStores.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * get the metadata index of the inventories and snapshots under the root, reconciled with them on first use
+     */
+    public static InventoryMetadataIndex getMetadata(File root) throws IOException {
+        // keyed by the backend as well, so that switching it reconciles the index with the new store
+        String key = getBackend() + ":" + root.getAbsolutePath();
+        InventoryMetadataIndex index = metadataIndexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        synchronized (metadataIndexes) {
+            index = metadataIndexes.get(key);
+            if (index == null) {
+                String suffix = ":" + root.getAbsolutePath();
+                for (Iterator<Map.Entry<String, InventoryMetadataIndex>> iter = metadataIndexes.entrySet().iterator(); iter.hasNext(); ) {
+                    Map.Entry<String, InventoryMetadataIndex> entry = iter.next();
+                    if (entry.getKey().endsWith(suffix)) {
+                        // written before it is read by the new one
+                        entry.getValue().flush();
+                        iter.remove();
+                    }
+                }
+                index = new InventoryMetadataIndex(root);
+                index.open(get(root), getSnapshots(root));
+                metadataIndexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * write the metadata indexes not written yet
+     */
+    @Terminator
+    public static void flushMetadata() {
+        for (InventoryMetadataIndex index : metadataIndexes.values()) {
+            try {
+                index.flush();
+            } catch (IOException e) {
+                LOGGER.warning("failed to flush the inventory metadata: " + e);
+            }
+        }
+    }
+
+    private static String getBackend() {
+        String backend = DeployGlobalConfiguration.get().getInventoryStorage();
+        return backend == null || backend.isEmpty() ? FILE : backend;
+    }
+
+    private static InventoryStore open(String backend, File root) throws IOException {
+        switch (backend) {
+            case FILE:
+                return new FileInventoryStore(root);
+            case LOG:
+                return openLog(root);
+            default:
+                throw new IllegalArgumentException("unknown inventory storage " + backend);
+        }
+    }
+
+    /**
+     * open the log store under the root, the json files are imported into it when it is created.
+     * if it already exists, the json files changed by the file storage since then are imported again,
+     * see {@link #reimport}
+     */
+    static LogInventoryStore openLog(File root) throws IOException {
+        File logFile = new File(root, LogInventoryStore.LOG_FILE_NAME);
+        boolean migrate = !logFile.exists();
+        // taken before opening, since truncating a torn record on opening modifies the log
+        long logModified = logFile.lastModified();
+        LogInventoryStore store = new LogInventoryStore(root);
+        try {
+            if (migrate) {
+                migrate(new FileInventoryStore(root), store);
+            } else {
+                reimport(new FileInventoryStore(root), store, logModified);
+            }
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            if (migrate) {
+                // drop the partial log, so that the migration is retried next time
+                logFile.delete();
+            }
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * import the inventories saved as json files into a new log, the json files are left as they are,
+     * so switching back to the file storage still finds them (without the changes made in the meantime)
+     */
+    private static void migrate(FileInventoryStore from, LogInventoryStore to) throws IOException {
+        Map<String, Long> inventories = from.listWithTimestamps();
+        for (Map.Entry<String, Long> entry : inventories.entrySet()) {
+            String json = from.load(entry.getKey());
+            if (json != null) {
+                to.save(entry.getKey(), json, entry.getValue());
+            }
+        }
+        String head = from.getHead();
+        if (head != null) {
+            to.setHead(head);
+        }
+        if (!inventories.isEmpty()) {
+            LOGGER.info("migrated " + inventories.size() + " deploy inventories to the log store");
+        }
+    }
+
+    /**
+     * import the json files saved by the file storage while it was selected after the log had been created.
+     * a json file is imported if it is newer than the record of the same inventory in the log,
+     * or newer than the log itself if the inventory is not in the log.
+     * the inventories deleted by the file storage are not deleted from the log.
+     */
+    private static void reimport(FileInventoryStore from, LogInventoryStore to, long logModified) throws IOException {
+        Map<String, Long> logged = to.listWithTimestamps();
+        int count = 0;
+        for (Map.Entry<String, Long> entry : from.listWithTimestamps().entrySet()) {
+            Long loggedTimestamp = logged.get(entry.getKey());
+            if (entry.getValue() <= (loggedTimestamp == null ? logModified : loggedTimestamp)) {
+                continue;
+            }
+            String json = from.load(entry.getKey());
+            if (json != null) {
+                to.save(entry.getKey(), json, entry.getValue());
+                count++;
+            }
+        }
+        if (from.getHeadTimestamp() > logModified) {
+            to.setHead(from.getHead());
+        }
+        if (count > 0) {
+            LOGGER.warning("imported " + count + " deploy inventories changed by the file storage into the log store");
+        }
+    }
+}
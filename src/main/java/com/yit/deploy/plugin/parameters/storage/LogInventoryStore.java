@@ -0,0 +1,410 @@
+package com.yit.deploy.plugin.parameters.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of inventory changes with an in-memory index of the latest record of each inventory.
+ *
+ * Each record is {@code [length][crc32][payload]}, and the payload is {@code [type][timestamp][name][value]}.
+ * On open, the log is replayed to rebuild the index. A torn record left by a crash is truncated, which is only the case
+ * for the last record of the log, while a broken record followed by others is a corruption, which fails the open.
+ * Either way, a copy of the log is kept before anything is dropped.
+ *
+ * Records are appended to the file under the store lock, while fsync is done out of it, so concurrent writers
+ * waiting for their records to be durable share one fsync (group commit).
+ * The log is compacted once the obsolete records take most of its size.
+ */
+public class LogInventoryStore implements InventoryStore, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(LogInventoryStore.class.getName());
+
+    public static final String LOG_FILE_NAME = "inventories.log";
+
+    private static final byte TYPE_SAVE = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final byte TYPE_HEAD = 3;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long MIN_COMPACTION_SIZE = 4 * 1024 * 1024;
+
+    private final File file;
+
+    private FileChannel channel;
+    private long end;
+    private long liveSize;
+
+    /**
+     * name -> latest save record of the inventory
+     */
+    private final Map<String, Entry> index = new HashMap<>();
+    private Entry head;
+
+    private final Object syncLock = new Object();
+    private long writtenSeq;
+    private long syncedSeq;
+
+    public LogInventoryStore(File root) throws IOException {
+        this.file = new File(root, LOG_FILE_NAME);
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("failed to create folder " + root);
+        }
+        open();
+    }
+
+    public static boolean exists(File root) {
+        return new File(root, LOG_FILE_NAME).exists();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index.clear();
+        head = null;
+        liveSize = 0;
+        try {
+            end = replay();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (end < channel.size()) {
+            File copy = backup();
+            LOGGER.warning("truncate the torn tail of " + file + " from " + channel.size() + " to " + end + ", the log is copied to " + copy);
+            channel.truncate(end);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @return position of the end of the last intact record
+     * @throws IOException if a broken record is followed by other records
+     */
+    private long replay() throws IOException {
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position < size) {
+            if (position + RECORD_HEADER_SIZE > size) {
+                // the header of the last record is cut
+                break;
+            }
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length <= 0) {
+                // a crash may leave the tail zero filled, nothing else explains an empty record
+                if (isZeroFilled(position, size)) {
+                    break;
+                }
+                throw corrupted(position, "invalid record length " + length);
+            }
+            if (position + RECORD_HEADER_SIZE + length > size) {
+                // the payload of the last record is cut
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + RECORD_HEADER_SIZE);
+            if (crc(payload.array()) != crc) {
+                if (position + RECORD_HEADER_SIZE + length == size) {
+                    // the payload of the last record is not fully written
+                    break;
+                }
+                throw corrupted(position, "checksum mismatch");
+            }
+            apply(Record.decode(payload.array()), position, RECORD_HEADER_SIZE + length);
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private boolean isZeroFilled(long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size - position, 64 * 1024));
+        while (position < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            readFully(buffer, position);
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) != 0) {
+                    return false;
+                }
+            }
+            position += buffer.limit();
+        }
+        return true;
+    }
+
+    private IOException corrupted(long position, String reason) throws IOException {
+        File copy = backup();
+        return new IOException(file + " is corrupted at " + position + ": " + reason
+            + ", which is not a torn write since more records follow. the log is copied to " + copy);
+    }
+
+    /**
+     * copy the log aside before dropping anything from it
+     */
+    private File backup() throws IOException {
+        File copy = new File(file.getPath() + ".broken-" + System.currentTimeMillis());
+        Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    private void apply(Record record, long position, int size) {
+        switch (record.type) {
+            case TYPE_SAVE:
+                Entry old = index.put(record.name, new Entry(position, size, record.timestamp));
+                if (old != null) {
+                    liveSize -= old.size;
+                }
+                liveSize += size;
+                break;
+            case TYPE_DELETE:
+                Entry deleted = index.remove(record.name);
+                if (deleted != null) {
+                    liveSize -= deleted.size;
+                }
+                break;
+            case TYPE_HEAD:
+                if (head != null) {
+                    liveSize -= head.size;
+                }
+                head = record.value.isEmpty() ? null : new Entry(position, size, record.timestamp);
+                if (head != null) {
+                    liveSize += size;
+                }
+                break;
+            default:
+                throw new IllegalStateException("unknown record type " + record.type);
+        }
+    }
+
+    @Override
+    public synchronized String load(String name) throws IOException {
+        Entry entry = index.get(name);
+        return entry == null ? null : readRecord(entry).value;
+    }
+
+    @Override
+    public void save(String name, String json) throws IOException {
+        save(name, json, System.currentTimeMillis());
+    }
+
+    /**
+     * save with the given timestamp, used by migration to keep the order of the inventories
+     */
+    public void save(String name, String json, long timestamp) throws IOException {
+        sync(append(new Record(TYPE_SAVE, timestamp, name, json)));
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (!index.containsKey(name)) {
+                return;
+            }
+            seq = append(new Record(TYPE_DELETE, System.currentTimeMillis(), name, ""));
+        }
+        sync(seq);
+    }
+
+    @Override
+    public synchronized List<String> list() {
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>(index.entrySet());
+        entries.sort((o1, o2) -> Long.compare(o2.getValue().timestamp, o1.getValue().timestamp));
+        List<String> names = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Entry> entry : entries) {
+            names.add(entry.getKey());
+        }
+        return names;
+    }
+
+    @Override
+    public synchronized Map<String, Long> listWithTimestamps() {
+        List<String> names = list();
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = names.size() - 1; i >= 0; i--) {
+            result.put(names.get(i), index.get(names.get(i)).timestamp);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized String getHead() throws IOException {
+        return head == null ? null : readRecord(head).value;
+    }
+
+    @Override
+    public void setHead(String name) throws IOException {
+        sync(append(new Record(TYPE_HEAD, System.currentTimeMillis(), "", name == null ? "" : name)));
+    }
+
+    /**
+     * append the record to the file without fsync
+     *
+     * @return sequence of the record, pass it to {@link #sync(long)} to wait for it to be durable
+     */
+    private synchronized long append(Record record) throws IOException {
+        byte[] payload = record.encode();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt(crc(payload));
+        buffer.put(payload);
+        buffer.flip();
+
+        long position = end;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        apply(record, end, RECORD_HEADER_SIZE + payload.length);
+        end = position;
+        return ++writtenSeq;
+    }
+
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) {
+                // flushed by another writer
+                return;
+            }
+            long target;
+            FileChannel current;
+            synchronized (this) {
+                target = writtenSeq;
+                current = channel;
+            }
+            current.force(false);
+            syncedSeq = target;
+
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * rewrite the live records into a new log and replace the current one with it atomically.
+     * called with the sync lock held, so no fsync is in progress.
+     */
+    private void compactIfNeeded() throws IOException {
+        synchronized (this) {
+            if (end < MIN_COMPACTION_SIZE || liveSize * 2 > end) {
+                return;
+            }
+
+            File tmp = new File(file.getPath() + ".compact");
+            List<Entry> entries = new ArrayList<>(index.values());
+            if (head != null) {
+                entries.add(head);
+            }
+            entries.sort(Comparator.comparingLong(e -> e.position));
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Entry entry : entries) {
+                    ByteBuffer buffer = ByteBuffer.allocate(entry.size);
+                    readFully(buffer, entry.position);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+                out.force(true);
+            }
+
+            long before = end;
+            channel.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            open();
+            syncedSeq = writtenSeq;
+            LOGGER.info("compacted " + file + " from " + before + " to " + end + " bytes");
+        }
+    }
+
+    private Record readRecord(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.size - RECORD_HEADER_SIZE);
+        readFully(buffer, entry.position + RECORD_HEADER_SIZE);
+        return Record.decode(buffer.array());
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("unexpected end of " + file);
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static class Entry {
+        private final long position;
+        private final int size;
+        private final long timestamp;
+
+        private Entry(long position, int size, long timestamp) {
+            this.position = position;
+            this.size = size;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class Record {
+        private final byte type;
+        private final long timestamp;
+        private final String name;
+        private final String value;
+
+        private Record(byte type, long timestamp, String name, String value) {
+            this.type = type;
+            this.timestamp = timestamp;
+            this.name = name;
+            this.value = value;
+        }
+
+        private byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeByte(type);
+                out.writeLong(timestamp);
+                out.writeUTF(name);
+                byte[] data = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static Record decode(byte[] payload) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+                byte type = in.readByte();
+                long timestamp = in.readLong();
+                String name = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                return new Record(type, timestamp, name, new String(data, StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "corrupted inventory record", e);
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.yit.deploy.plugin.parameters.storage;
+
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+import hudson.Util;
+import hudson.util.AtomicFileWriter;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content addressed storage of the deploy inventory snapshots taken by builds.
+ *
+ * The content of a snapshot is its canonical json without the name, which is stored once as a gzipped blob
+ * named by its SHA-256 under {@code blobs/}, so the builds deploying the same plan share one blob.
+ * The snapshot names are mapped to the blobs by {@code index.json}, and the changes since it is written are appended
+ * to {@code index.journal}, one json line per change, so saving a snapshot does not rewrite the whole index.
+ * The journal is folded into the index once it has more records than the index file has entries.
+ * The snapshots older than the retention, or beyond the max count, are dropped from the index,
+ * and then the blobs no longer referenced are deleted.
+ */
+public class SnapshotStore {
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotStore.class.getName());
+
+    private static final String INDEX_FILE_NAME = "index.json";
+    private static final String JOURNAL_FILE_NAME = "index.journal";
+    private static final int MIN_COMPACTION_RECORDS = 1000;
+    private static final String BLOBS_FOLDER_NAME = "blobs";
+    private static final String BLOB_SUFFIX = ".json.gz";
+    private static final long GC_INTERVAL = 3600 * 1000;
+
+    private static final Gson GSON = new Gson();
+    private static final Type INDEX_TYPE = new TypeToken<LinkedHashMap<String, Entry>>() {}.getType();
+
+    private final File root;
+
+    /**
+     * name -> entry, in the order of saving
+     */
+    private LinkedHashMap<String, Entry> index;
+
+    /**
+     * number of the records in the journal
+     */
+    private int journalRecords;
+
+    /**
+     * number of the entries in the index file
+     */
+    private int indexedEntries;
+
+    private long lastGcTime;
+
+    public SnapshotStore(File root) {
+        this.root = root;
+    }
+
+    public static boolean exists(File root) {
+        return new File(root, INDEX_FILE_NAME).exists();
+    }
+
+    public synchronized String load(String name) throws IOException {
+        Entry entry = getIndex().get(name);
+        if (entry == null) {
+            return null;
+        }
+        File blob = getBlobFile(entry.hash);
+        if (!blob.isFile()) {
+            LOGGER.warning("blob " + entry.hash + " of snapshot " + name + " is missing");
+            return null;
+        }
+        String content;
+        try (InputStream in = new GZIPInputStream(new FileInputStream(blob))) {
+            content = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        JsonObject json = new JsonParser().parse(content).getAsJsonObject();
+        json.addProperty("name", name);
+        return json.toString();
+    }
+
+    /**
+     * save the snapshot under a name not used yet, which is the given name, or suffixed by a number if it is used
+     *
+     * @return the name saved
+     */
+    public synchronized String save(String name, String json, long timestamp) throws IOException {
+        String uniqueName = put(name, json, timestamp);
+        appendJournal(Collections.singletonList(new JournalRecord(uniqueName, getIndex().get(uniqueName))));
+        return uniqueName;
+    }
+
+    /**
+     * move the snapshots saved in the inventory store by the former versions into this store,
+     * they are deleted from the inventory store once the index is written
+     */
+    public synchronized void importSnapshots(InventoryStore from, String prefix) throws IOException {
+        List<String> imported = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : from.listWithTimestamps().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                String json = from.load(entry.getKey());
+                if (json != null) {
+                    put(entry.getKey(), json, entry.getValue());
+                }
+                imported.add(entry.getKey());
+            }
+        }
+        // written even if nothing is imported, so that it is not run again
+        writeIndex();
+        for (String name : imported) {
+            from.delete(name);
+        }
+        if (!imported.isEmpty()) {
+            LOGGER.info("moved " + imported.size() + " deploy inventory snapshots to " + root);
+        }
+    }
+
+    private String put(String name, String json, long timestamp) throws IOException {
+        JsonObject content = new JsonParser().parse(json).getAsJsonObject();
+        content.remove("name");
+        String canonical = canonicalize(content).toString();
+        String hash = sha256(canonical);
+
+        File blob = getBlobFile(hash);
+        if (!blob.isFile()) {
+            writeBlob(blob, canonical);
+        }
+
+        LinkedHashMap<String, Entry> index = getIndex();
+        String uniqueName = name;
+        for (int i = 2; index.containsKey(uniqueName); i++) {
+            uniqueName = name + "-" + i;
+        }
+        index.put(uniqueName, new Entry(hash, timestamp));
+        return uniqueName;
+    }
+
+    public synchronized void delete(String name) throws IOException {
+        if (getIndex().remove(name) != null) {
+            // the blob may be shared, it is deleted by gc if no longer referenced
+            appendJournal(Collections.singletonList(new JournalRecord(name, null)));
+        }
+    }
+
+    /**
+     * @return name -> saved time, the oldest first
+     */
+    public synchronized Map<String, Long> listWithTimestamps() throws IOException {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> entry : getIndex().entrySet()) {
+            result.put(entry.getKey(), entry.getValue().timestamp);
+        }
+        return result;
+    }
+
+    /**
+     * apply the retention if not applied in the last hour
+     *
+     * @param retentionDays snapshots older than that are dropped, 0 to keep them regardless of the age
+     * @param maxCount only the most recent snapshots up to that count are kept, 0 to keep them regardless of the count
+     * @return names of the snapshots dropped
+     */
+    public synchronized List<String> gcIfDue(int retentionDays, int maxCount) throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastGcTime < GC_INTERVAL) {
+            return Collections.emptyList();
+        }
+        lastGcTime = now;
+
+        LinkedHashMap<String, Entry> index = getIndex();
+        List<String> dropped = new ArrayList<>();
+        long expiry = retentionDays > 0 ? now - retentionDays * 24L * 3600 * 1000 : Long.MIN_VALUE;
+        for (Iterator<Map.Entry<String, Entry>> iter = index.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<String, Entry> entry = iter.next();
+            if (entry.getValue().timestamp < expiry || (maxCount > 0 && index.size() > maxCount)) {
+                iter.remove();
+                dropped.add(entry.getKey());
+            }
+        }
+        if (!dropped.isEmpty()) {
+            List<JournalRecord> records = new ArrayList<>(dropped.size());
+            for (String name : dropped) {
+                records.add(new JournalRecord(name, null));
+            }
+            appendJournal(records);
+        }
+
+        Set<String> referenced = new HashSet<>();
+        for (Entry entry : index.values()) {
+            referenced.add(entry.hash);
+        }
+        int deleted = 0;
+        File[] folders = new File(root, BLOBS_FOLDER_NAME).listFiles(File::isDirectory);
+        if (folders != null) {
+            for (File folder : folders) {
+                File[] blobs = folder.listFiles((dir, fileName) -> fileName.endsWith(BLOB_SUFFIX));
+                if (blobs == null) {
+                    continue;
+                }
+                for (File blob : blobs) {
+                    String hash = blob.getName().substring(0, blob.getName().length() - BLOB_SUFFIX.length());
+                    if (!referenced.contains(hash) && blob.delete()) {
+                        deleted++;
+                    }
+                }
+            }
+        }
+        if (!dropped.isEmpty() || deleted > 0) {
+            LOGGER.info("dropped " + dropped.size() + " snapshots and deleted " + deleted + " blobs in " + root);
+        }
+        return dropped;
+    }
+
+    private LinkedHashMap<String, Entry> getIndex() throws IOException {
+        if (index == null) {
+            File file = new File(root, INDEX_FILE_NAME);
+            if (file.isFile()) {
+                index = GSON.fromJson(FileUtils.readFileToString(file, StandardCharsets.UTF_8), INDEX_TYPE);
+            }
+            if (index == null) {
+                index = new LinkedHashMap<>();
+            }
+            if (replayJournal()) {
+                // the torn last record is dropped with the journal, so that the next record is not appended to it
+                writeIndex();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * apply the journal to the index read from the index file
+     *
+     * @return true if the last record is torn by a crash while it was appended
+     */
+    private boolean replayJournal() throws IOException {
+        File file = new File(root, JOURNAL_FILE_NAME);
+        indexedEntries = index.size();
+        journalRecords = 0;
+        if (!file.isFile()) {
+            return false;
+        }
+        String content = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+        int start = 0;
+        while (start < content.length()) {
+            int end = content.indexOf('\n', start);
+            if (end < 0) {
+                LOGGER.warning("dropped the torn last record of " + file);
+                return true;
+            }
+            JournalRecord record = GSON.fromJson(content.substring(start, end), JournalRecord.class);
+            if (record.hash == null) {
+                index.remove(record.name);
+            } else {
+                index.put(record.name, new Entry(record.hash, record.timestamp));
+            }
+            journalRecords++;
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * append the records to the journal in one write, and fold the journal into the index once it grows large
+     */
+    private void appendJournal(List<JournalRecord> records) throws IOException {
+        mkdirs(root);
+        StringBuilder sb = new StringBuilder();
+        for (JournalRecord record : records) {
+            sb.append(GSON.toJson(record)).append('\n');
+        }
+        try (FileOutputStream out = new FileOutputStream(new File(root, JOURNAL_FILE_NAME), true)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        journalRecords += records.size();
+        if (journalRecords > Math.max(MIN_COMPACTION_RECORDS, indexedEntries)) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * write the whole index and then drop the journal, whose records are all in the index.
+     * if crashed in between, replaying the journal again on the index written makes no difference.
+     */
+    private void writeIndex() throws IOException {
+        getIndex();
+        mkdirs(root);
+        AtomicFileWriter writer = new AtomicFileWriter(new File(root, INDEX_FILE_NAME).toPath(), StandardCharsets.UTF_8);
+        try {
+            GSON.toJson(index, INDEX_TYPE, writer);
+            writer.commit();
+        } finally {
+            writer.abort();
+        }
+        Files.deleteIfExists(new File(root, JOURNAL_FILE_NAME).toPath());
+        indexedEntries = index.size();
+        journalRecords = 0;
+    }
+
+    private void writeBlob(File blob, String content) throws IOException {
+        mkdirs(blob.getParentFile());
+        File tmp = File.createTempFile("blob", ".tmp", blob.getParentFile());
+        try {
+            try (FileOutputStream file = new FileOutputStream(tmp); GZIPOutputStream out = new GZIPOutputStream(file)) {
+                out.write(content.getBytes(StandardCharsets.UTF_8));
+                out.finish();
+                // durable before it is moved in place and referenced by the index
+                file.getFD().sync();
+            }
+            Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private File getBlobFile(String hash) {
+        return new File(new File(new File(root, BLOBS_FOLDER_NAME), hash.substring(0, 2)), hash + BLOB_SUFFIX);
+    }
+
+    private static void mkdirs(File folder) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("failed to create folder " + folder);
+        }
+    }
+
+    /**
+     * sort the fields of the objects, so that the same content always has the same json
+     */
+    static JsonElement canonicalize(JsonElement element) {
+        if (element.isJsonObject()) {
+            TreeMap<String, JsonElement> sorted = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                sorted.put(entry.getKey(), canonicalize(entry.getValue()));
+            }
+            JsonObject result = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : sorted.entrySet()) {
+                result.add(entry.getKey(), entry.getValue());
+            }
+            return result;
+        }
+        if (element.isJsonArray()) {
+            JsonArray result = new JsonArray();
+            for (JsonElement e : element.getAsJsonArray()) {
+                result.add(canonicalize(e));
+            }
+            return result;
+        }
+        return element;
+    }
+
+    private static String sha256(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Util.toHexString(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * a line of the journal, the snapshot is deleted if the hash is null
+     */
+    private static class JournalRecord {
+        private String name;
+        private String hash;
+        private long timestamp;
+
+        private JournalRecord(String name, Entry entry) {
+            this.name = name;
+            if (entry != null) {
+                this.hash = entry.hash;
+                this.timestamp = entry.timestamp;
+            }
+        }
+    }
+
+    private static class Entry {
+        private String hash;
+        private long timestamp;
+
+        private Entry(String hash, long timestamp) {
+            this.hash = hash;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.yit.deploy.plugin.steps;
+
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Computes the MD5 digests of config files recorded in the seed references of job-dsl.
+ *
+ * Digests are cached by the path, size and modification time of the file, so an unchanged file is never read again,
+ * and the missing ones are computed concurrently on a bounded pool.
+ */
+public class ConfigDigestService {
+
+    private static final ConfigDigestService INSTANCE = new ConfigDigestService();
+
+    private static final int MAX_CACHED_DIGESTS = 100000;
+
+    /**
+     * absolute path -> digest of the file
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final ExecutorService executorService;
+
+    public static ConfigDigestService get() {
+        return INSTANCE;
+    }
+
+    private ConfigDigestService() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+            60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "config-digest")
+        );
+        executor.allowCoreThreadTimeOut(true);
+        this.executorService = executor;
+    }
+
+    public String digest(File file) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String path = file.getAbsolutePath();
+
+        Entry entry = entries.get(path);
+        if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+            return entry.digest;
+        }
+
+        String digest = Util.getDigestOf(file);
+        if (entries.size() >= MAX_CACHED_DIGESTS) {
+            entries.clear();
+        }
+        entries.put(path, new Entry(size, lastModified, digest));
+        return digest;
+    }
+
+    /**
+     * compute the digests of all files, the ones not cached are computed concurrently
+     *
+     * @return file -> digest
+     */
+    public Map<File, String> digestAll(Collection<File> files) throws IOException, InterruptedException {
+        Map<File, Future<String>> futures = new HashMap<>();
+        for (File file : files) {
+            futures.put(file, executorService.submit(() -> digest(file)));
+        }
+
+        Map<File, String> digests = new HashMap<>();
+        for (Map.Entry<File, Future<String>> e : futures.entrySet()) {
+            try {
+                digests.put(e.getKey(), e.getValue().get());
+            } catch (ExecutionException ex) {
+                throw new IOException("failed to compute digest of " + e.getKey(), ex.getCause());
+            }
+        }
+        return digests;
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String digest;
+
+        private Entry(long size, long lastModified, String digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+}
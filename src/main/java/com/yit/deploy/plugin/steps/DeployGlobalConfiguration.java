@@ -8,6 +8,7 @@ import com.yit.deploy.core.model.DeployModelTable;
 import com.yit.deploy.core.storage.StorageConfig;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.util.ListBoxModel;
 import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
@@ -18,6 +19,8 @@ import javax.annotation.Nonnull;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Created by nick on 29/12/2017.
@@ -59,6 +62,27 @@ public class DeployGlobalConfiguration extends GlobalConfiguration {
     @DataBoundSetter
     private String envs;
 
+    @DataBoundSetter
+    private boolean gitMirrorCacheEnabled;
+
+    @DataBoundSetter
+    private long gitMirrorCacheQuota = 20480;
+
+    @DataBoundSetter
+    private int jobGenerationParallelism = 4;
+
+    @DataBoundSetter
+    private String inventoryStorage = "file";
+
+    @DataBoundSetter
+    private int snapshotRetentionDays;
+
+    @DataBoundSetter
+    private int snapshotMaxCount;
+
+    @DataBoundSetter
+    private String buildAvoidanceJobs;
+
     public DeployGlobalConfiguration() {
         load();
     }
@@ -138,11 +162,105 @@ public class DeployGlobalConfiguration extends GlobalConfiguration {
         this.envs = envs;
     }
 
+    public boolean isGitMirrorCacheEnabled() {
+        return gitMirrorCacheEnabled;
+    }
+
+    public void setGitMirrorCacheEnabled(boolean gitMirrorCacheEnabled) {
+        this.gitMirrorCacheEnabled = gitMirrorCacheEnabled;
+    }
+
+    /**
+     * max total size in MB of the git mirrors on each node
+     */
+    public long getGitMirrorCacheQuota() {
+        return gitMirrorCacheQuota;
+    }
+
+    public void setGitMirrorCacheQuota(long gitMirrorCacheQuota) {
+        this.gitMirrorCacheQuota = gitMirrorCacheQuota;
+    }
+
     private FilePath getFinalLocalPath() {
         String path = localPath.replace("${JENKINS_HOME}", Jenkins.get().root.getPath());
         return new FilePath(Jenkins.get().getRootPath().getChannel(), path);
     }
 
+    /**
+     * how many envs are generated concurrently by the generateJobs step
+     */
+    public int getJobGenerationParallelism() {
+        return jobGenerationParallelism;
+    }
+
+    public void setJobGenerationParallelism(int jobGenerationParallelism) {
+        this.jobGenerationParallelism = jobGenerationParallelism;
+    }
+
+    /**
+     * backend of the saved deploy inventories, "file" or "log"
+     */
+    public String getInventoryStorage() {
+        return inventoryStorage;
+    }
+
+    public void setInventoryStorage(String inventoryStorage) {
+        this.inventoryStorage = inventoryStorage;
+    }
+
+    public ListBoxModel doFillInventoryStorageItems() {
+        ListBoxModel items = new ListBoxModel();
+        items.add("One JSON File per Inventory", "file");
+        items.add("Append-only Log", "log");
+        return items;
+    }
+
+    /**
+     * deploy inventory snapshots taken by builds are dropped after that many days, 0 to keep them regardless of the age.
+     * off by default, since the snapshots imported from the former versions would be dropped by the first build
+     */
+    public int getSnapshotRetentionDays() {
+        return snapshotRetentionDays;
+    }
+
+    public void setSnapshotRetentionDays(int snapshotRetentionDays) {
+        this.snapshotRetentionDays = snapshotRetentionDays;
+    }
+
+    /**
+     * max count of the deploy inventory snapshots kept per parameter, 0 to keep them regardless of the count
+     */
+    public int getSnapshotMaxCount() {
+        return snapshotMaxCount;
+    }
+
+    public void setSnapshotMaxCount(int snapshotMaxCount) {
+        this.snapshotMaxCount = snapshotMaxCount;
+    }
+
+    /**
+     * regex of the full names of the downstream jobs whose successful builds are reused if the inputs are the same,
+     * empty to always build
+     */
+    public String getBuildAvoidanceJobs() {
+        return buildAvoidanceJobs;
+    }
+
+    public void setBuildAvoidanceJobs(String buildAvoidanceJobs) {
+        this.buildAvoidanceJobs = buildAvoidanceJobs;
+    }
+
+    public boolean isBuildReusable(String jobFullName) {
+        if (buildAvoidanceJobs == null || buildAvoidanceJobs.trim().isEmpty()) {
+            return false;
+        }
+        try {
+            return Pattern.matches(buildAvoidanceJobs.trim(), jobFullName);
+        } catch (PatternSyntaxException e) {
+            return false;
+        }
+    }
+
     public ConfigProject toConfigProject() {
         return new ConfigProject(projectRepositoryUrl, projectBranch, getFinalLocalPath(), maxDelay);
     }
@@ -0,0 +1,358 @@
+package com.yit.deploy.plugin.steps;
+
+import hudson.FilePath;
+import hudson.model.AbstractItem;
+import hudson.model.ItemGroup;
+import hudson.model.Run;
+import hudson.model.View;
+import hudson.model.ViewGroup;
+import hudson.security.AccessControlled;
+import javaposse.jobdsl.dsl.ExtensibleContext;
+import javaposse.jobdsl.dsl.Item;
+import javaposse.jobdsl.dsl.UserContent;
+import javaposse.jobdsl.plugin.JenkinsJobManagement;
+import javaposse.jobdsl.plugin.LookupStrategy;
+import jenkins.model.ModifiableTopLevelItemGroup;
+import org.apache.commons.io.FilenameUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Job management used by generateJobs, which leaves an existing item untouched if its config is
+ * identical to the generated one after canonicalization, so that its config.xml is neither rewritten nor reloaded.
+ *
+ * In plan mode, nothing is written at all. The items and views which would be added or changed are recorded instead,
+ * together with the diff of their configs. The config files, which the config file provider writes as soon as
+ * they are declared, are skipped and only counted.
+ */
+public class DeployJobManagement extends JenkinsJobManagement {
+
+    private static final Logger LOG = Logger.getLogger(DeployJobManagement.class.getName());
+
+    /**
+     * simple name of the dsl context of the config files, matched by name since it is provided by another plugin
+     */
+    private static final String CONFIG_FILES_CONTEXT = "ConfigFilesContext";
+
+    private final Run<?, ?> run;
+    private final LookupStrategy lookupStrategy;
+    private final boolean plan;
+
+    private int writtenCount;
+
+    /**
+     * names of the items whose config is not changed, as referenced by the dsl script
+     */
+    private final Set<String> unchangedItems = new HashSet<>();
+
+    /**
+     * plan mode only, name of the item or view -> diff of its config, which is null for new ones
+     */
+    private final Map<String, List<String>> plannedItems = new TreeMap<>();
+    private final Map<String, List<String>> plannedViews = new TreeMap<>();
+
+    /**
+     * plan mode only, number of the config files skipped
+     */
+    private int skippedConfigFiles;
+
+    public DeployJobManagement(PrintStream outputLogger, Map<String, ?> envVars, Run<?, ?> run,
+                               FilePath workspace, LookupStrategy lookupStrategy, boolean plan) {
+        super(outputLogger, envVars, run, workspace, lookupStrategy);
+        this.run = run;
+        this.lookupStrategy = lookupStrategy;
+        this.plan = plan;
+    }
+
+    @Override
+    public boolean createOrUpdateConfig(Item dslItem, boolean ignoreExisting) {
+        AbstractItem existing = lookupStrategy.getItem(run.getParent(), dslItem.getName(), AbstractItem.class);
+        String existingXml = readConfig(existing);
+
+        if (existingXml != null && isIdentical(existing.getFullName(), existingXml, dslItem.getXml())) {
+            unchangedItems.add(dslItem.getName());
+            return false;
+        }
+        if (plan) {
+            if (existing == null || !ignoreExisting) {
+                plannedItems.put(dslItem.getName(), existing == null ? null : diff(existingXml, dslItem.getXml()));
+            }
+            return existing == null;
+        }
+        boolean created = super.createOrUpdateConfig(dslItem, ignoreExisting);
+        writtenCount++;
+        return created;
+    }
+
+    /**
+     * create or update the item by the config rendered without the dsl, see {@link PipelineJobRenderer}
+     *
+     * @return true if the item is created
+     */
+    public boolean createOrUpdateConfig(String path, String xml) throws IOException {
+        AbstractItem existing = lookupStrategy.getItem(run.getParent(), path, AbstractItem.class);
+        String existingXml = readConfig(existing);
+
+        if (existingXml != null && isIdentical(existing.getFullName(), existingXml, xml)) {
+            unchangedItems.add(path);
+            return false;
+        }
+        if (plan) {
+            plannedItems.put(path, existing == null ? null : diff(existingXml, xml));
+            return existing == null;
+        }
+
+        writtenCount++;
+        if (existing != null) {
+            existing.checkPermission(hudson.model.Item.CONFIGURE);
+            existing.updateByXml((Source) new StreamSource(new StringReader(xml)));
+            return false;
+        }
+
+        ItemGroup parent = lookupStrategy.getParent(run.getParent(), path);
+        if (!(parent instanceof ModifiableTopLevelItemGroup)) {
+            throw new IOException("could not create item " + path + ", since its parent does not exist or could not contain items");
+        }
+        if (parent instanceof AccessControlled) {
+            ((AccessControlled) parent).checkPermission(hudson.model.Item.CREATE);
+        }
+        ((ModifiableTopLevelItemGroup) parent).createProjectFromXML(
+            FilenameUtils.getName(path), new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))
+        );
+        return true;
+    }
+
+    @Override
+    public void createOrUpdateView(String path, String config, boolean ignoreExisting) {
+        if (!plan) {
+            super.createOrUpdateView(path, config, ignoreExisting);
+            return;
+        }
+
+        View existing = null;
+        ItemGroup parent = lookupStrategy.getParent(run.getParent(), path);
+        if (parent instanceof ViewGroup) {
+            existing = ((ViewGroup) parent).getView(FilenameUtils.getName(path));
+        }
+        if (existing == null) {
+            plannedViews.put(path, null);
+            return;
+        }
+        if (ignoreExisting) {
+            return;
+        }
+
+        String existingXml;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            existing.writeXml(out);
+            existingXml = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "could not read config of view " + path, e);
+            existingXml = "";
+        }
+        if (!isIdentical(path, existingXml, config)) {
+            plannedViews.put(path, diff(existingXml, config));
+        }
+    }
+
+    @Override
+    public void createOrUpdateUserContent(UserContent userContent, boolean ignoreExisting) {
+        if (!plan) {
+            super.createOrUpdateUserContent(userContent, ignoreExisting);
+        }
+    }
+
+    @Override
+    public void renameJobMatching(String previousNames, String destination) throws IOException {
+        if (!plan) {
+            super.renameJobMatching(previousNames, destination);
+        }
+    }
+
+    /**
+     * the extensions of the configFiles context create the config files right away, so they are not called in plan mode
+     */
+    @Override
+    public Object callExtension(String name, Item item, Class<? extends ExtensibleContext> contextType, Object... args) throws Throwable {
+        if (plan && CONFIG_FILES_CONTEXT.equals(contextType.getSimpleName())) {
+            skippedConfigFiles++;
+            return null;
+        }
+        return super.callExtension(name, item, contextType, args);
+    }
+
+    @Override
+    public void queueJob(String path) {
+        if (!plan) {
+            super.queueJob(path);
+        }
+    }
+
+    public boolean isPlan() {
+        return plan;
+    }
+
+    public int getWrittenCount() {
+        return writtenCount;
+    }
+
+    public int getSkippedCount() {
+        return unchangedItems.size();
+    }
+
+    public Set<String> getUnchangedItems() {
+        return unchangedItems;
+    }
+
+    /**
+     * print the items and views which would be added or changed, with the diff of the changed ones
+     */
+    public void printPlan(PrintStream logger) {
+        printPlanned(logger, "item", plannedItems);
+        printPlanned(logger, "view", plannedViews);
+        long addedItems = plannedItems.values().stream().filter(Objects::isNull).count();
+        long addedViews = plannedViews.values().stream().filter(Objects::isNull).count();
+        logger.println(String.format("Plan: %d items to add, %d to change, %d unchanged; %d views to add, %d to change",
+            addedItems, plannedItems.size() - addedItems, unchangedItems.size(), addedViews, plannedViews.size() - addedViews));
+        if (skippedConfigFiles > 0) {
+            logger.println(String.format("Plan: %d config files not evaluated", skippedConfigFiles));
+        }
+    }
+
+    private static void printPlanned(PrintStream logger, String kind, Map<String, List<String>> planned) {
+        for (Map.Entry<String, List<String>> entry : planned.entrySet()) {
+            if (entry.getValue() == null) {
+                logger.println("+ " + kind + " " + entry.getKey());
+            } else {
+                logger.println("~ " + kind + " " + entry.getKey());
+                for (String line : entry.getValue()) {
+                    logger.println("    " + line);
+                }
+            }
+        }
+    }
+
+    private static String readConfig(AbstractItem item) {
+        if (item == null) {
+            return null;
+        }
+        try {
+            return item.getConfigFile().asString();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "could not read config of " + item.getFullName(), e);
+            return null;
+        }
+    }
+
+    private static boolean isIdentical(String name, String existingXml, String xml) {
+        try {
+            return canonicalize(existingXml).isEqualNode(canonicalize(xml));
+        } catch (IOException | SAXException | ParserConfigurationException | RuntimeException e) {
+            LOG.log(Level.FINE, "could not compare config of " + name, e);
+            return false;
+        }
+    }
+
+    /**
+     * parse the xml and drop the whitespace between elements, so that only the content is compared
+     */
+    static Document canonicalize(String xml) throws ParserConfigurationException, IOException, SAXException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        factory.setCoalescing(true);
+        factory.setIgnoringComments(true);
+        DocumentBuilder builder = factory.newDocumentBuilder();
+
+        Document document = builder.parse(new InputSource(new StringReader(xml)));
+        removeWhitespaceNodes(document.getDocumentElement());
+        document.normalizeDocument();
+        return document;
+    }
+
+    private static void removeWhitespaceNodes(Node node) {
+        NodeList children = node.getChildNodes();
+        for (int i = children.getLength() - 1; i >= 0; i--) {
+            Node child = children.item(i);
+            if (child.getNodeType() == Node.TEXT_NODE && child.getTextContent().trim().isEmpty() && children.getLength() > 1) {
+                node.removeChild(child);
+            } else if (child.getNodeType() == Node.ELEMENT_NODE) {
+                removeWhitespaceNodes(child);
+            }
+        }
+    }
+
+    /**
+     * format the xml with the same indentation, so that the diff only shows the changes of the content
+     */
+    private static String[] formatLines(String xml) {
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+            StringWriter writer = new StringWriter();
+            transformer.transform(new DOMSource(canonicalize(xml)), new StreamResult(writer));
+            return writer.toString().split("\r?\n");
+        } catch (TransformerException | ParserConfigurationException | IOException | SAXException | RuntimeException e) {
+            return xml.split("\r?\n");
+        }
+    }
+
+    /**
+     * line based diff of two configs, only the removed lines (prefixed by "-") and added lines (prefixed by "+") are returned
+     */
+    static List<String> diff(String oldXml, String newXml) {
+        String[] a = formatLines(oldXml);
+        String[] b = formatLines(newXml);
+
+        // longest common subsequence of lines
+        int[][] lcs = new int[a.length + 1][b.length + 1];
+        for (int i = a.length - 1; i >= 0; i--) {
+            for (int j = b.length - 1; j >= 0; j--) {
+                lcs[i][j] = a[i].equals(b[j]) ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && a[i].equals(b[j])) {
+                i++;
+                j++;
+            } else if (j < b.length && (i == a.length || lcs[i][j + 1] >= lcs[i + 1][j])) {
+                result.add("+ " + b[j++]);
+            } else {
+                result.add("- " + a[i++]);
+            }
+        }
+        return result;
+    }
+}
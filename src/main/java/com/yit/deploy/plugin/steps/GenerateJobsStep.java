@@ -12,20 +12,26 @@ import com.yit.deploy.core.compile.DeployCompiler;
 import com.yit.deploy.core.config.DeployConfig;
 import com.yit.deploy.core.model.DeployModelTable;
 import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
 import groovy.lang.GroovyShell;
+import groovy.lang.Script;
 import hudson.*;
 import hudson.model.*;
 import hudson.model.Item;
 import hudson.model.Job;
 import hudson.model.View;
+import hudson.util.StreamTaskListener;
 import javaposse.jobdsl.dsl.*;
 import javaposse.jobdsl.plugin.*;
 import javaposse.jobdsl.plugin.actions.*;
 import jenkins.model.Jenkins;
 import org.acegisecurity.AccessDeniedException;
 import org.apache.commons.io.FilenameUtils;
+import org.codehaus.groovy.control.CompilationFailedException;
 import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.jenkinsci.plugins.workflow.steps.Step;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
@@ -38,8 +44,12 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import static java.lang.String.format;
 import static javaposse.jobdsl.plugin.actions.GeneratedObjectsAction.extractGeneratedObjects;
@@ -73,12 +83,27 @@ public class GenerateJobsStep extends Step {
      */
     @Override
     public StepExecution start(StepContext context) throws Exception {
-        return new GenerateJobExecution(context);
+        return new GenerateJobExecution(params, context);
     }
 
     static class GenerateJobExecution extends DeployExecution {
-        public GenerateJobExecution(@Nonnull StepContext context) {
+        private static final long serialVersionUID = 1L;
+
+        private Map<String, Object> params;
+
+        /**
+         * incremental mode only, digest of the global configuration
+         */
+        private transient String globalConfigDigest;
+
+        /**
+         * env name -> state of the env generated by this run, saved once the seed references are persisted
+         */
+        private transient Map<String, JobGenerationState> generatedStates;
+
+        public GenerateJobExecution(Map<String, Object> params, @Nonnull StepContext context) {
             super(context);
+            this.params = params == null ? Collections.emptyMap() : params;
         }
 
         /**
@@ -91,26 +116,267 @@ public class GenerateJobsStep extends Step {
             DeployConfig deployConfig = getDeployConfig();
             String jobDsl = deployConfig.getSourceFolder().childFile("jobs.groovy").getText();
             ExecuteDslScripts dslScripts = new ExecuteDslScripts(jobDsl);
+            dslScripts.setPlan(isPlan());
+            if (dslScripts.isPlan()) {
+                println("Plan mode, no item will be changed");
+            }
 
             List<String> envs = DeployGlobalConfiguration.get().getEnvList();
             if (envs.isEmpty()) {
                 printError("No envs defined in configuration! Please configure it properly.");
                 return null;
             }
+            envs = filterEnvs(envs);
 
             println("Loading Job info from config project & database");
             DeployModelTable modelTable = getModelTable();
+            if (isIncremental()) {
+                globalConfigDigest = JobGenerationState.digestGlobalConfig(DeployGlobalConfiguration.get().getConfigFile());
+            }
+
+            generatedStates = new ConcurrentHashMap<>();
+            try {
+                generateJobs(dslScripts, modelTable, envs);
+            } finally {
+                // the seed references of the envs done are kept even if other envs failed, since they match the items written.
+                // the states of all envs generated by this run are deleted before generating,
+                // so if the references fail to be saved, no state is left to be taken as done by the next run
+                dslScripts.persistDescriptor(getTaskListener());
+                saveGeneratedStates();
+            }
+            if (dslScripts.isPlan()) {
+                dslScripts.printPlannedRemovals(getTaskListener());
+            }
+            return null;
+        }
 
-            for (String envName : envs) {
-                Map<String, Object> params = new HashMap<>();
-                params.put("env", modelTable.getEnv(envName));
-                params.put("jobs", modelTable.getJobs().getJobsInEnv(envName));
+        private void generateJobs(ExecuteDslScripts dslScripts, DeployModelTable modelTable, List<String> envs) throws Exception {
+            int parallelism = Math.min(getParallelism(), envs.size());
+            if (parallelism <= 1) {
+                for (String envName : envs) {
+                    colorPrintln("70", "Generate Jobs for " + envName);
+                    generateJobs(dslScripts, modelTable, envName, getTaskListener());
+                }
+                return;
+            }
 
-                colorPrintln("70", "Generate Jobs for " + envName);
-                dslScripts.perform(getRun(), getWorkspace(), getTaskListener(), params);
+            println("Generate Jobs for " + envs.size() + " envs with parallelism " + parallelism);
+            Queue<String> queue = new ConcurrentLinkedQueue<>(envs);
+            Map<String, Throwable> errors = new ConcurrentHashMap<>();
+            List<Future<?>> workers = new ArrayList<>(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                workers.add(schedule(() -> {
+                    String envName;
+                    while ((envName = queue.poll()) != null) {
+                        // buffer the output of each env, so that the output of different envs will not be mixed
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        TaskListener listener = new StreamTaskListener(buffer, StandardCharsets.UTF_8);
+                        try {
+                            generateJobs(dslScripts, modelTable, envName, listener);
+                        } catch (Throwable t) {
+                            LOG.log(Level.WARNING, "generate jobs for env " + envName + " failed", t);
+                            listener.getLogger().println(t.getMessage());
+                            errors.put(envName, t);
+                        } finally {
+                            listener.getLogger().flush();
+                            synchronized (this) {
+                                colorPrintln("70", "Generate Jobs for " + envName);
+                                print(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
             }
 
-            return null;
+            if (!errors.isEmpty()) {
+                throw new AbortException("failed to generate jobs for envs " + String.join(", ", errors.keySet()));
+            }
+        }
+
+        private void generateJobs(ExecuteDslScripts dslScripts, DeployModelTable modelTable, String envName, TaskListener listener)
+            throws IOException, InterruptedException {
+            Object env = modelTable.getEnv(envName);
+            List<com.yit.deploy.core.model.Job> allJobs = modelTable.getJobs().getJobsInEnv(envName);
+            List<com.yit.deploy.core.model.Job> jobs = filterJobs(allJobs);
+            boolean jobsFiltered = isJobsFiltered();
+            if (jobsFiltered) {
+                listener.getLogger().println("Generate " + jobs.size() + " selected jobs of " + allJobs.size() + " jobs");
+            }
+
+            hudson.model.Job seedJob = getRun().getParent();
+            JobGenerationState lastState = JobGenerationState.load(seedJob, envName);
+            // the jobs not selected this time are still referenced
+            Set<GeneratedJob> carriedJobs = jobsFiltered && lastState != null ? lastState.getGeneratedJobs() : Collections.emptySet();
+            Predicate<String> unreferencedScope = getUnreferencedScope(lastState);
+
+            Map<String, String> fingerprints = null;
+            List<com.yit.deploy.core.model.Job> changedJobs = jobs;
+            if (isIncremental()) {
+                String contextDigest = Util.getDigestOf(globalConfigDigest + "\n" + digestTemplates(seedJob, lastState));
+                fingerprints = JobGenerationState.fingerprint(dslScripts.getScriptText(), contextDigest, env, allJobs);
+                List<com.yit.deploy.core.model.Job> changed = lastState == null ? null : lastState.getChangedJobs(allJobs, fingerprints);
+                if (changed == null) {
+                    listener.getLogger().println("Generate all " + jobs.size() + " jobs, since the last generated jobs are unknown or some jobs are removed");
+                } else {
+                    changed.retainAll(jobs);
+                    if (changed.isEmpty()) {
+                        listener.getLogger().println("No job is changed since the last generation");
+                        return;
+                    }
+                    listener.getLogger().println(changed.size() + " of " + jobs.size() + " jobs are changed since the last generation");
+                    changedJobs = changed;
+                    carriedJobs = lastState.getGeneratedJobs();
+                }
+            }
+
+            Map<String, Object> scriptParams = new HashMap<>();
+            scriptParams.put("env", env);
+            scriptParams.put("jobs", jobs);
+            // scripts opt in to the incremental generation by generating only these jobs, the rest are carried over
+            scriptParams.put("changedJobs", changedJobs);
+            scriptParams.put("allJobs", allJobs);
+
+            // the fingerprints of a run with only some jobs selected do not match the generated jobs, so the state is kept as is
+            if (jobsFiltered || dslScripts.isPlan()) {
+                dslScripts.perform(getRun(), getWorkspace(), listener, scriptParams, carriedJobs, unreferencedScope);
+                return;
+            }
+
+            // the state is dropped before generating, so a failed generation is never taken as done by the next run.
+            // it is saved by non-incremental runs as well, without fingerprints, for the generated jobs of the env
+            JobGenerationState.delete(seedJob, envName);
+            Set<GeneratedJob> generatedJobs = dslScripts.perform(getRun(), getWorkspace(), listener, scriptParams, carriedJobs, unreferencedScope);
+            generatedStates.put(envName, new JobGenerationState(fingerprints, generatedJobs));
+        }
+
+        private void saveGeneratedStates() throws IOException {
+            hudson.model.Job seedJob = getRun().getParent();
+            for (Map.Entry<String, JobGenerationState> entry : generatedStates.entrySet()) {
+                entry.getValue().save(seedJob, entry.getKey());
+            }
+            generatedStates.clear();
+        }
+
+        /**
+         * digest the templates used by the jobs generated last time,
+         * the templates used for the first time come along with a changed job model or script.
+         */
+        private String digestTemplates(hudson.model.Job seedJob, JobGenerationState lastState) throws IOException {
+            Map<String, File> templateConfigs = new HashMap<>();
+            if (lastState != null) {
+                for (String templateName : lastState.getTemplateNames()) {
+                    AbstractItem template = LookupStrategy.JENKINS_ROOT.getItem(seedJob, templateName, AbstractItem.class);
+                    templateConfigs.put(templateName, template == null ? null : template.getConfigFile().getFile());
+                }
+            }
+            return JobGenerationState.digestTemplates(templateConfigs);
+        }
+
+        private List<com.yit.deploy.core.model.Job> filterJobs(List<com.yit.deploy.core.model.Job> jobs) {
+            List<String> projects = getListParam("projects");
+            Pattern jobNamePattern = getJobNamePattern();
+            if (projects == null && jobNamePattern == null) {
+                return jobs;
+            }
+            List<com.yit.deploy.core.model.Job> filtered = new ArrayList<>();
+            for (com.yit.deploy.core.model.Job job : jobs) {
+                if ((projects == null || projects.contains(job.getProjectName()))
+                    && (jobNamePattern == null || jobNamePattern.matcher(job.getJobName()).matches())) {
+                    filtered.add(job);
+                }
+            }
+            return filtered;
+        }
+
+        private List<String> filterEnvs(List<String> envs) throws AbortException {
+            List<String> selected = getListParam("envs");
+            if (selected == null) {
+                return envs;
+            }
+            List<String> unknown = new ArrayList<>(selected);
+            unknown.removeAll(envs);
+            if (!unknown.isEmpty()) {
+                throw new AbortException("unknown envs " + String.join(", ", unknown));
+            }
+            List<String> filtered = new ArrayList<>(envs);
+            filtered.retainAll(selected);
+            return filtered;
+        }
+
+        /**
+         * @return true if only some jobs of each env are generated
+         */
+        private boolean isJobsFiltered() {
+            return getListParam("projects") != null || getJobNamePattern() != null;
+        }
+
+        /**
+         * the generated jobs which could become unreferenced when generating the env.
+         * when only some envs or projects are selected, the jobs generated from the others are unknown,
+         * so the scope is narrowed to the jobs generated for the env last time.
+         * with only some projects selected, these are all carried over, since it is unknown which project they belong to.
+         *
+         * @param lastState state of the env saved by the last run, null if not found
+         */
+        private Predicate<String> getUnreferencedScope(JobGenerationState lastState) {
+            Pattern jobNamePattern = getJobNamePattern();
+            Predicate<String> scope = jobNamePattern == null
+                ? Predicates.alwaysTrue()
+                : name -> name != null && jobNamePattern.matcher(name).matches();
+            if (getListParam("envs") == null && getListParam("projects") == null) {
+                return scope;
+            }
+            Set<String> lastGenerated = new HashSet<>();
+            if (lastState != null) {
+                for (GeneratedJob job : lastState.getGeneratedJobs()) {
+                    lastGenerated.add(job.getJobName());
+                }
+            }
+            return name -> lastGenerated.contains(name) && scope.apply(name);
+        }
+
+        private Pattern getJobNamePattern() {
+            Object value = params.get("jobNamePattern");
+            return value == null || value.toString().isEmpty() ? null : Pattern.compile(value.toString());
+        }
+
+        /**
+         * @return null if not given, the value could be either a collection or a comma separated string
+         */
+        private List<String> getListParam(String key) {
+            Object value = params.get(key);
+            if (value == null) {
+                return null;
+            }
+            Collection<?> values = value instanceof Collection ? (Collection<?>) value : Arrays.asList(value.toString().split(","));
+            List<String> list = new ArrayList<>();
+            for (Object v : values) {
+                if (v != null && !v.toString().trim().isEmpty()) {
+                    list.add(v.toString().trim());
+                }
+            }
+            return list.isEmpty() ? null : list;
+        }
+
+        private boolean isPlan() {
+            Object value = params.get("plan");
+            return value != null && Boolean.parseBoolean(value.toString());
+        }
+
+        private boolean isIncremental() {
+            Object value = params.get("incremental");
+            return value != null && Boolean.parseBoolean(value.toString());
+        }
+
+        private int getParallelism() {
+            Object value = params.get("parallelism");
+            if (value != null && !value.toString().isEmpty()) {
+                return Integer.parseInt(value.toString());
+            }
+            return DeployGlobalConfiguration.get().getJobGenerationParallelism();
         }
     }
 
@@ -129,6 +395,21 @@ public class GenerateJobsStep extends Step {
         private boolean failOnMissingPlugin;
 //        private boolean unstableOnDeprecation;
 
+        /**
+         * the descriptor is saved only once after all envs are generated, instead of once per env and per map
+         */
+        private volatile boolean descriptorMutated;
+
+        /**
+         * evaluate the scripts and report the changes only, without touching any item or descriptor
+         */
+        private boolean plan;
+
+        /**
+         * plan mode only, the generated jobs which would become unreferenced by any env
+         */
+        private final Set<GeneratedJob> plannedRemovals = ConcurrentHashMap.newKeySet();
+
         private RemovedJobAction removedJobAction = RemovedJobAction.IGNORE;
         private RemovedViewAction removedViewAction = RemovedViewAction.IGNORE;
         private LookupStrategy lookupStrategy = LookupStrategy.JENKINS_ROOT;
@@ -141,11 +422,59 @@ public class GenerateJobsStep extends Step {
             return lookupStrategy == null ? LookupStrategy.JENKINS_ROOT : lookupStrategy;
         }
 
+        public String getScriptText() {
+            return scriptText;
+        }
+
+        public boolean isPlan() {
+            return plan;
+        }
+
+        public void setPlan(boolean plan) {
+            this.plan = plan;
+        }
+
+        /**
+         * print the jobs which would become unreferenced, should be called after all envs are planned
+         */
+        public void printPlannedRemovals(TaskListener listener) {
+            Set<String> unreferenced = new TreeSet<>();
+            for (GeneratedJob job : plannedRemovals) {
+                unreferenced.add(job.getJobName());
+            }
+            for (String name : unreferenced) {
+                listener.getLogger().println("- item " + name);
+            }
+            listener.getLogger().println(format("Plan: %d items to be unreferenced", unreferenced.size()));
+        }
+
+        /**
+         * persist the mutations made to the descriptor by all envs, including the ones done before another env failed.
+         * the descriptor is never reloaded, which would also drop the unsaved mutations of other seed jobs.
+         */
+        public void persistDescriptor(TaskListener listener) throws IOException {
+            if (!descriptorMutated) {
+                return;
+            }
+            javaposse.jobdsl.plugin.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(javaposse.jobdsl.plugin.DescriptorImpl.class);
+            synchronized (descriptor) {
+                descriptor.save();
+                descriptorMutated = false;
+            }
+            listener.getLogger().println("Seed references of generated jobs and templates are saved");
+        }
+
         /**
          * Runs every job DSL script provided in the plugin configuration, which results in new /
          * updated Jenkins jobs. The created / updated jobs are reported in the build result.
+         *
+         * @param carriedJobs jobs generated by previous runs and not regenerated this time, which are still referenced
+         * @param unreferencedScope names of the generated jobs which could become unreferenced in this run
+         * @return all referenced jobs, including the carried ones
          */
-        public void perform(@Nonnull Run<?, ?> run, @Nonnull FilePath workspace, @Nonnull TaskListener listener, Map<String, Object> params) throws InterruptedException, IOException {
+        public Set<GeneratedJob> perform(@Nonnull Run<?, ?> run, @Nonnull FilePath workspace, @Nonnull TaskListener listener,
+                                         Map<String, Object> params, Set<GeneratedJob> carriedJobs,
+                                         Predicate<String> unreferencedScope) throws InterruptedException, IOException {
             try {
                 EnvVars env = run.getEnvironment(listener);
                 if (run instanceof AbstractBuild) {
@@ -154,12 +483,15 @@ public class GenerateJobsStep extends Step {
 
                 Map<String, Object> envVars = new HashMap<>(env);
                 envVars.putAll(params);
+                PipelineJobRenderer renderer = new PipelineJobRenderer();
+                envVars.put("renderer", renderer);
 
-                JenkinsJobManagement jenkinsJobManagement = new JenkinsJobManagement(
-                    listener.getLogger(), envVars, run, workspace, getLookupStrategy()
+                DeployJobManagement deployJobManagement = new DeployJobManagement(
+                    listener.getLogger(), envVars, run, workspace, getLookupStrategy(), plan
                 );
-                jenkinsJobManagement.setFailOnMissingPlugin(failOnMissingPlugin);
-                JobManagement jobManagement = new InterruptibleJobManagement(jenkinsJobManagement);
+                renderer.setJobManagement(deployJobManagement);
+                deployJobManagement.setFailOnMissingPlugin(failOnMissingPlugin);
+                JobManagement jobManagement = new InterruptibleJobManagement(deployJobManagement);
 
                 try (ScriptRequestGenerator generator = new ScriptRequestGenerator(workspace, env)) {
                     Set<ScriptRequest> scriptRequests = generator.getScriptRequests(
@@ -168,22 +500,43 @@ public class GenerateJobsStep extends Step {
 
                     JenkinsDslScriptLoader dslScriptLoader = new JenkinsDslScriptLoaderForDeploy(jobManagement);
 
+                    long start = System.currentTimeMillis();
                     GeneratedItems generatedItems = dslScriptLoader.runScripts(scriptRequests);
-                    Set<GeneratedJob> freshJobs = generatedItems.getJobs();
+                    logThroughput(listener, renderer, generatedItems.getJobs().size(), System.currentTimeMillis() - start);
+
+                    Set<GeneratedJob> freshJobs = new HashSet<>(generatedItems.getJobs());
+                    freshJobs.addAll(renderer.getGeneratedJobs());
+                    freshJobs.addAll(carriedJobs);
                     Set<GeneratedView> freshViews = generatedItems.getViews();
 //                    Set<GeneratedConfigFile> freshConfigFiles = generatedItems.getConfigFiles();
                     Set<GeneratedUserContent> freshUserContents = generatedItems.getUserContents();
 
+                    if (plan) {
+                        plannedRemovals.addAll(findUnreferencedJobs(run.getParent(), freshJobs, unreferencedScope));
+                        deployJobManagement.printPlan(listener.getLogger());
+                        return freshJobs;
+                    }
+
+                    // the items not written by this run keep their digests
+                    Set<String> untouchedJobs = new HashSet<>(deployJobManagement.getUnchangedItems());
+                    for (GeneratedJob carriedJob : carriedJobs) {
+                        untouchedJobs.add(carriedJob.getJobName());
+                    }
+
                     updateTemplates(run.getParent(), listener, freshJobs);
-                    updateGeneratedJobs(run.getParent(), listener, freshJobs);
+                    int removedCount = updateGeneratedJobs(run.getParent(), listener, freshJobs, untouchedJobs, unreferencedScope);
                     updateGeneratedViews(run.getParent(), listener, freshViews);
                     updateGeneratedUserContents(run.getParent(), listener, freshUserContents);
 
+                    listener.getLogger().println(format("Items written: %d, skipped as unchanged: %d, removed: %d",
+                        deployJobManagement.getWrittenCount(), deployJobManagement.getSkippedCount(), removedCount));
+
                     // Save onto Builder, which belongs to a Project.
 //                    run.addAction(new GeneratedJobsBuildAction(freshJobs, getLookupStrategy()));
 //                    run.addAction(new GeneratedViewsBuildAction(freshViews, getLookupStrategy()));
 //                    run.addAction(new GeneratedConfigFilesBuildAction(freshConfigFiles));
 //                    run.addAction(new GeneratedUserContentsBuildAction(freshUserContents));
+                    return freshJobs;
                 }
             } catch (RuntimeException e) {
                 if (!(e instanceof DslException) && !(e instanceof AccessDeniedException)) {
@@ -194,11 +547,27 @@ public class GenerateJobsStep extends Step {
             }
         }
 
+        /**
+         * print the throughput of the jobs rendered in java, which is timed around each render and save,
+         * and the total run time of the scripts, which covers the script logic, the dsl jobs and the rendered jobs alike.
+         * it is a log for comparing runs of the same script, the renderer is compared with the dsl by PipelineJobRendererBenchmarkTest.
+         */
+        private void logThroughput(TaskListener listener, PipelineJobRenderer renderer, int dslJobCount, long totalMillis) {
+            int renderedCount = renderer.getGeneratedJobs().size();
+            long renderMillis = renderer.getRenderMillis();
+            if (renderedCount > 0) {
+                listener.getLogger().println(format("Rendered and saved %d pipeline jobs without the dsl in %d ms, %.1f jobs/sec",
+                    renderedCount, renderMillis, renderedCount * 1000.0 / Math.max(1, renderMillis)));
+            }
+            listener.getLogger().println(format("Ran the dsl scripts in %d ms, generating %d dsl jobs and %d rendered jobs",
+                totalMillis, dslJobCount, renderedCount));
+        }
+
         /**
          * Uses generatedJobs as existing data, so call before updating generatedJobs.
          */
         private Set<String> updateTemplates(hudson.model.Job seedJob, TaskListener listener,
-                                            Set<GeneratedJob> freshJobs) throws IOException {
+                                            Set<GeneratedJob> freshJobs) throws IOException, InterruptedException {
             Set<String> freshTemplates = getTemplates(freshJobs);
             Set<String> existingTemplates = getTemplates(extractGeneratedObjects(seedJob, GeneratedJobsAction.class));
             Set<String> newTemplates = Sets.difference(freshTemplates, existingTemplates);
@@ -211,6 +580,30 @@ public class GenerateJobsStep extends Step {
             // Collect information about the templates we loaded
             final String seedJobName = seedJob.getName();
             javaposse.jobdsl.plugin.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(javaposse.jobdsl.plugin.DescriptorImpl.class);
+
+            // digests are computed out of the lock of the descriptor
+            Map<String, File> templateFiles = new HashMap<>();
+            for (String templateName : freshTemplates) {
+                AbstractItem templateProject = getLookupStrategy().getItem(seedJob, templateName, AbstractItem.class);
+                if (templateProject != null) {
+                    templateFiles.put(templateName, templateProject.getConfigFile().getFile());
+                }
+            }
+            Map<File, String> digests = ConfigDigestService.get().digestAll(templateFiles.values());
+            Map<String, String> templateDigests = new HashMap<>();
+            for (Map.Entry<String, File> entry : templateFiles.entrySet()) {
+                templateDigests.put(entry.getKey(), digests.get(entry.getValue()));
+            }
+
+            // envs may be generated concurrently, while the maps of the descriptor are not thread safe
+            synchronized (descriptor) {
+                updateTemplates(descriptor, seedJobName, templateDigests, removedTemplates);
+            }
+            return freshTemplates;
+        }
+
+        private void updateTemplates(javaposse.jobdsl.plugin.DescriptorImpl descriptor, String seedJobName,
+                                     Map<String, String> templateDigests, Set<String> removedTemplates) {
             boolean descriptorMutated = false;
 
             // Clean up
@@ -224,12 +617,12 @@ public class GenerateJobsStep extends Step {
             }
 
             // Ensure we have a reference
-            for (String templateName : freshTemplates) {
+            for (Map.Entry<String, String> entry : templateDigests.entrySet()) {
+                String templateName = entry.getKey();
                 Collection<SeedReference> seedJobReferences = descriptor.getTemplateJobMap().get(templateName);
                 Collection<SeedReference> matching = Collections2.filter(seedJobReferences, new SeedNamePredicate(seedJobName));
 
-                AbstractItem templateProject = getLookupStrategy().getItem(seedJob, templateName, AbstractItem.class);
-                final String digest = Util.getDigestOf(new FileInputStream(templateProject.getConfigFile().getFile()));
+                final String digest = entry.getValue();
 
                 if (matching.size() == 1) {
                     // Just update digest
@@ -249,15 +642,18 @@ public class GenerateJobsStep extends Step {
             }
 
             if (descriptorMutated) {
-                descriptor.save();
+                this.descriptorMutated = true;
             }
-            return freshTemplates;
         }
 
-        private void updateGeneratedJobs(final hudson.model.Job seedJob, TaskListener listener,
-                                         Set<GeneratedJob> freshJobs) throws IOException, InterruptedException {
+        /**
+         * @param untouchedJobs names of the jobs whose config is not written by this run
+         * @return count of the removed and disabled jobs
+         */
+        private int updateGeneratedJobs(final hudson.model.Job seedJob, TaskListener listener, Set<GeneratedJob> freshJobs,
+                                        Set<String> untouchedJobs, Predicate<String> unreferencedScope) throws IOException, InterruptedException {
             // Update Project
-            Set<GeneratedJob> generatedJobs = extractGeneratedObjects(seedJob, GeneratedJobsAction.class);
+            Set<GeneratedJob> generatedJobs = getScopedGeneratedJobs(seedJob, freshJobs, unreferencedScope);
             Set<GeneratedJob> added = Sets.difference(freshJobs, generatedJobs);
             Set<GeneratedJob> existing = Sets.intersection(generatedJobs, freshJobs);
             Set<GeneratedJob> unreferenced = Sets.difference(generatedJobs, freshJobs);
@@ -293,18 +689,66 @@ public class GenerateJobsStep extends Step {
             logItems(listener, "Disabled items", disabled);
             logItems(listener, "Removed items", removed);
 
-            updateGeneratedJobMap(seedJob, Sets.union(added, existing), unreferenced);
+            updateGeneratedJobMap(seedJob, Sets.union(added, existing), unreferenced, untouchedJobs);
+            return removed.size() + disabled.size();
+        }
+
+        /**
+         * the jobs generated by the seed job so far, which are either generated again or could become unreferenced in this run
+         */
+        private Set<GeneratedJob> getScopedGeneratedJobs(hudson.model.Job seedJob, Set<GeneratedJob> freshJobs,
+                                                         Predicate<String> unreferencedScope) {
+            return Sets.filter(
+                extractGeneratedObjects(seedJob, GeneratedJobsAction.class),
+                job -> freshJobs.contains(job) || unreferencedScope.apply(job.getJobName())
+            );
+        }
+
+        /**
+         * the jobs which become unreferenced once the fresh jobs are generated, same as {@link #updateGeneratedJobs}
+         */
+        private Set<GeneratedJob> findUnreferencedJobs(hudson.model.Job seedJob, Set<GeneratedJob> freshJobs,
+                                                       Predicate<String> unreferencedScope) {
+            return new HashSet<>(Sets.difference(getScopedGeneratedJobs(seedJob, freshJobs, unreferencedScope), freshJobs));
         }
 
         private void updateGeneratedJobMap(hudson.model.Job seedJob, Set<GeneratedJob> createdOrUpdatedJobs,
-                                           Set<GeneratedJob> removedJobs) throws IOException {
+                                           Set<GeneratedJob> removedJobs, Set<String> untouchedJobs) throws IOException, InterruptedException {
             javaposse.jobdsl.plugin.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(javaposse.jobdsl.plugin.DescriptorImpl.class);
+
+            // digests of the written jobs are computed out of the lock of the descriptor
+            List<File> configFiles = new ArrayList<>();
+            for (GeneratedJob generatedJob : createdOrUpdatedJobs) {
+                if (!untouchedJobs.contains(generatedJob.getJobName())) {
+                    Item item = getLookupStrategy().getItem(seedJob, generatedJob.getJobName(), Item.class);
+                    if (item != null) {
+                        configFiles.add(Items.getConfigFile(item).getFile());
+                    }
+                }
+            }
+            Map<File, String> digests = ConfigDigestService.get().digestAll(configFiles);
+
+            synchronized (descriptor) {
+                updateGeneratedJobMap(seedJob, descriptor, createdOrUpdatedJobs, removedJobs, untouchedJobs, digests);
+            }
+        }
+
+        private void updateGeneratedJobMap(hudson.model.Job seedJob, javaposse.jobdsl.plugin.DescriptorImpl descriptor,
+                                           Set<GeneratedJob> createdOrUpdatedJobs, Set<GeneratedJob> removedJobs,
+                                           Set<String> untouchedJobs, Map<File, String> digests) throws IOException {
             boolean descriptorMutated = false;
             Map<String, SeedReference> generatedJobMap = descriptor.getGeneratedJobMap();
 
             for (GeneratedJob generatedJob : createdOrUpdatedJobs) {
                 Item item = getLookupStrategy().getItem(seedJob, generatedJob.getJobName(), Item.class);
                 if (item != null) {
+                    SeedReference oldSeedReference = generatedJobMap.get(item.getFullName());
+                    if (untouchedJobs.contains(generatedJob.getJobName()) && oldSeedReference != null
+                        && seedJob.getFullName().equals(oldSeedReference.getSeedJobName())) {
+                        // config.xml is not written, so the recorded digest is still valid
+                        continue;
+                    }
+
                     SeedReference newSeedReference = new SeedReference(seedJob.getFullName());
                     if (generatedJob.getTemplateName() != null) {
                         Item template = getLookupStrategy().getItem(seedJob, generatedJob.getTemplateName(), Item.class);
@@ -312,9 +756,10 @@ public class GenerateJobsStep extends Step {
                             newSeedReference.setTemplateJobName(template.getFullName());
                         }
                     }
-                    newSeedReference.setDigest(Util.getDigestOf(Items.getConfigFile(item).getFile()));
+                    File configFile = Items.getConfigFile(item).getFile();
+                    String digest = digests.get(configFile);
+                    newSeedReference.setDigest(digest != null ? digest : ConfigDigestService.get().digest(configFile));
 
-                    SeedReference oldSeedReference = generatedJobMap.get(item.getFullName());
                     if (!newSeedReference.equals(oldSeedReference)) {
                         generatedJobMap.put(item.getFullName(), newSeedReference);
                         descriptorMutated = true;
@@ -331,7 +776,7 @@ public class GenerateJobsStep extends Step {
             }
 
             if (descriptorMutated) {
-                descriptor.save();
+                this.descriptorMutated = true;
             }
         }
 
@@ -416,6 +861,22 @@ public class GenerateJobsStep extends Step {
     }
 
     private static class JenkinsDslScriptLoaderForDeploy extends JenkinsDslScriptLoader {
+
+        private static final int MAX_CACHED_SCRIPTS = 16;
+
+        /**
+         * script text digest -> compiled script class, shared by all envs and runs.
+         * all entries are compiled against {@link #cachedClassLoader}.
+         */
+        private static final Map<String, Class<?>> compiledScripts = new LinkedHashMap<String, Class<?>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Class<?>> eldest) {
+                return size() > MAX_CACHED_SCRIPTS;
+            }
+        };
+
+        private static ClassLoader cachedClassLoader;
+
         public JenkinsDslScriptLoaderForDeploy(JobManagement jobManagement) {
             super(jobManagement);
         }
@@ -433,7 +894,7 @@ public class GenerateJobsStep extends Step {
                 CompilerConfiguration config = createCompilerConfiguration();
                 this.customizeCompilerConfiguration(config);
                 for (ScriptRequest scriptRequest : scriptRequests) {
-                    GroovyShell groovyShell = new GroovyShell(
+                    GroovyShell groovyShell = new CachingGroovyShell(
                         DeployCompiler.getInstance().DEPLOY_CLASSLOADER,
                         new Binding(),
                         config
@@ -474,6 +935,44 @@ public class GenerateJobsStep extends Step {
             icz.addImports("javaposse.jobdsl.dsl.helpers.triggers.BuildResultTriggerContext.BuildResult");
             config.addCompilationCustomizers(icz);
         }
+
+        /**
+         * find the compiled class of the script text, or compile it if not found.
+         * the cache is dropped once the deploy classloader changes, which happens when the config project is reloaded.
+         */
+        private static Class<?> getScriptClass(GroovyCodeSource codeSource, GroovyClassLoader loader, ClassLoader parent) {
+            String key = Util.getDigestOf(codeSource.getScriptText());
+            synchronized (compiledScripts) {
+                if (cachedClassLoader != parent) {
+                    compiledScripts.clear();
+                    cachedClassLoader = parent;
+                }
+                Class<?> cls = compiledScripts.get(key);
+                if (cls == null) {
+                    cls = loader.parseClass(codeSource, false);
+                    compiledScripts.put(key, cls);
+                }
+                return cls;
+            }
+        }
+
+        /**
+         * a groovy shell which reuses the class compiled from the same script text,
+         * so that jobs.groovy is compiled only once for all envs, while each script instance still gets its own binding.
+         */
+        private static class CachingGroovyShell extends GroovyShell {
+            private final ClassLoader parent;
+
+            private CachingGroovyShell(ClassLoader parent, Binding binding, CompilerConfiguration config) {
+                super(parent, binding, config);
+                this.parent = parent;
+            }
+
+            @Override
+            public Script parse(GroovyCodeSource codeSource) throws CompilationFailedException {
+                return InvokerHelper.createScript(getScriptClass(codeSource, getClassLoader(), parent), getContext());
+            }
+        }
     }
 
     @Extension
@@ -0,0 +1,173 @@
+package com.yit.deploy.plugin.steps;
+
+import com.google.gson.Gson;
+import com.yit.deploy.core.model.Job;
+import com.yit.deploy.core.model.JsonSupport;
+import hudson.Util;
+import hudson.XmlFile;
+import javaposse.jobdsl.dsl.GeneratedJob;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The fingerprints of the job models of an env and the jobs generated from them by the last generateJobs run,
+ * which is used to generate only the jobs whose models are changed since then.
+ *
+ * It is stored in the root dir of the seed job, one file per env.
+ */
+public class JobGenerationState {
+
+    private static final Logger LOGGER = Logger.getLogger(JobGenerationState.class.getName());
+
+    private static final String STATE_PATH = "generate-jobs";
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * job name -> fingerprint of its model, together with the script, the context and the env model
+     */
+    private Map<String, String> fingerprints;
+
+    /**
+     * all jenkins jobs generated for the env, including the ones carried over from previous runs
+     */
+    private Set<GeneratedJob> generatedJobs;
+
+    public JobGenerationState(Map<String, String> fingerprints, Set<GeneratedJob> generatedJobs) {
+        this.fingerprints = fingerprints;
+        this.generatedJobs = generatedJobs;
+    }
+
+    public Set<GeneratedJob> getGeneratedJobs() {
+        return generatedJobs == null ? Collections.emptySet() : generatedJobs;
+    }
+
+    /**
+     * compute the fingerprints of all jobs of the env.
+     * a job whose model could not be serialized gets no fingerprint, so it is always regenerated.
+     *
+     * only the inputs not captured by the models are digested besides them, other files of the config project
+     * affect the jobs through the models only.
+     *
+     * @param contextDigest digest of the other inputs of the script, see {@link #digestGlobalConfig} and {@link #digestTemplates}
+     */
+    public static Map<String, String> fingerprint(String scriptText, String contextDigest, Object env, List<Job> jobs) {
+        String envJson = toJson(env);
+        String prefix = scriptText + "\n" + contextDigest + "\n" + (envJson == null ? UUID.randomUUID().toString() : envJson) + "\n";
+
+        Map<String, String> fingerprints = new HashMap<>();
+        for (Job job : jobs) {
+            String json = toJson(job);
+            fingerprints.put(job.getJobName(), json == null ? null : Util.getDigestOf(prefix + json));
+        }
+        return fingerprints;
+    }
+
+    /**
+     * digest the global configuration, which the script could read besides the models
+     */
+    public static String digestGlobalConfig(XmlFile globalConfig) throws IOException {
+        return globalConfig.exists() ? Util.getDigestOf(globalConfig.getFile()) : "";
+    }
+
+    /**
+     * digest the config of the templates used by the jobs.
+     *
+     * @param templateConfigs template name -> config file, null if the template does not exist
+     */
+    public static String digestTemplates(Map<String, File> templateConfigs) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, File> entry : new TreeMap<>(templateConfigs).entrySet()) {
+            File file = entry.getValue();
+            sb.append(entry.getKey()).append('=').append(file != null && file.isFile() ? Util.getDigestOf(file) : "").append('\n');
+        }
+        return Util.getDigestOf(sb.toString());
+    }
+
+    /**
+     * the names of the templates used by the jobs generated last time
+     */
+    public Set<String> getTemplateNames() {
+        Set<String> names = new TreeSet<>();
+        for (GeneratedJob job : getGeneratedJobs()) {
+            if (job.getTemplateName() != null) {
+                names.add(job.getTemplateName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * find the jobs changed or added since the last run.
+     *
+     * @return null if all jobs should be generated, which is the case when any job is removed since the last run,
+     * since the jenkins jobs generated from a removed model could not be told apart from the others
+     */
+    public List<Job> getChangedJobs(List<Job> jobs, Map<String, String> currentFingerprints) {
+        if (fingerprints == null || generatedJobs == null || !currentFingerprints.keySet().containsAll(fingerprints.keySet())) {
+            return null;
+        }
+        List<Job> changed = new ArrayList<>();
+        for (Job job : jobs) {
+            String fingerprint = currentFingerprints.get(job.getJobName());
+            if (fingerprint == null || !fingerprint.equals(fingerprints.get(job.getJobName()))) {
+                changed.add(job);
+            }
+        }
+        return changed;
+    }
+
+    public static JobGenerationState load(hudson.model.Job seedJob, String envName) {
+        XmlFile file = getFile(seedJob, envName);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return (JobGenerationState) file.read();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "failed to load job generation state " + file, e);
+            return null;
+        }
+    }
+
+    public void save(hudson.model.Job seedJob, String envName) throws IOException {
+        getFile(seedJob, envName).write(this);
+    }
+
+    /**
+     * forget the state, so that the next incremental run generates all jobs of the env
+     */
+    public static void delete(hudson.model.Job seedJob, String envName) {
+        File file = getFile(seedJob, envName).getFile();
+        if (file.exists() && !file.delete()) {
+            LOGGER.warning("failed to delete job generation state " + file);
+        }
+    }
+
+    private static XmlFile getFile(hudson.model.Job seedJob, String envName) {
+        return new XmlFile(Jenkins.XSTREAM2, new File(new File(seedJob.getRootDir(), STATE_PATH), envName + ".xml"));
+    }
+
+    private static String toJson(Object model) {
+        if (model == null) {
+            return "null";
+        }
+        try {
+            if (model instanceof JsonSupport) {
+                StringWriter writer = new StringWriter();
+                ((JsonSupport) model).toJson(writer);
+                return writer.toString();
+            }
+            return GSON.toJson(model);
+        } catch (Exception | StackOverflowError e) {
+            LOGGER.log(Level.FINE, "could not serialize model " + model.getClass().getName(), e);
+            return null;
+        }
+    }
+}
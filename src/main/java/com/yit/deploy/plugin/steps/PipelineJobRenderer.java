@@ -0,0 +1,172 @@
+package com.yit.deploy.plugin.steps;
+
+import com.yit.deploy.plugin.parameters.DeployPlanParameterDefinition;
+import com.yit.deploy.plugin.parameters.HiddenParameterDefinition;
+import com.yit.deploy.plugin.parameters.ProjectBranchParameterDefinition;
+import hudson.model.BooleanParameterDefinition;
+import hudson.model.Items;
+import hudson.model.ParameterDefinition;
+import hudson.model.StringParameterDefinition;
+import javaposse.jobdsl.dsl.GeneratedJob;
+import org.apache.commons.lang.StringEscapeUtils;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Renders the config xml of simple pipeline jobs in java, and creates or updates them directly,
+ * instead of building them by the closures and xml nodes of the job dsl. Exposed to jobs.groovy as {@code renderer},
+ * which still runs as before and decides which jobs are rendered:
+ *
+ * <pre>
+ * renderer.pipelineJob(
+ *     name: "${env.name}-${job.jobName}",
+ *     description: "...",
+ *     script: "deployProject params",
+ *     parameters: [
+ *         [type: "deployPlan", name: "plan", envName: env.name, jobName: job.jobName],
+ *         [type: "projectBranch", name: "branch", projectName: job.projectName],
+ *         [type: "hidden", name: "project", defaultValue: job.projectName],
+ *     ]
+ * )
+ * </pre>
+ *
+ * The jobs of other shapes are still generated by the dsl. See PipelineJobRendererBenchmarkTest for the throughput
+ * of both.
+ */
+public class PipelineJobRenderer {
+
+    private DeployJobManagement jobManagement;
+
+    private final Set<GeneratedJob> generatedJobs = new LinkedHashSet<>();
+
+    private long renderNanos;
+
+    /**
+     * the renderer is put into the script parameters before the job management is created,
+     * so the job management is set afterwards
+     */
+    public void setJobManagement(DeployJobManagement jobManagement) {
+        this.jobManagement = jobManagement;
+    }
+
+    /**
+     * create or update a pipeline job
+     *
+     * @param options name, description, script, sandbox, disabled, concurrentBuild and parameters
+     */
+    public void pipelineJob(Map<String, Object> options) throws IOException {
+        long start = System.nanoTime();
+        String name = getString(options, "name", null);
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("name of the pipeline job is required");
+        }
+
+        jobManagement.createOrUpdateConfig(name, renderPipelineJob(options));
+        generatedJobs.add(new GeneratedJob(null, name));
+        renderNanos += System.nanoTime() - start;
+    }
+
+    public Set<GeneratedJob> getGeneratedJobs() {
+        return generatedJobs;
+    }
+
+    /**
+     * time spent on rendering and saving the jobs, in milliseconds
+     */
+    public long getRenderMillis() {
+        return renderNanos / 1000000;
+    }
+
+    static String renderPipelineJob(Map<String, Object> options) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version='1.1' encoding='UTF-8'?>\n");
+        sb.append("<flow-definition plugin=\"workflow-job\">\n");
+        sb.append("  <actions/>\n");
+        sb.append("  <description>").append(escape(getString(options, "description", ""))).append("</description>\n");
+        sb.append("  <keepDependencies>false</keepDependencies>\n");
+
+        List<ParameterDefinition> parameters = getParameters(options);
+        boolean concurrentBuild = getBoolean(options, "concurrentBuild", true);
+        if (parameters.isEmpty() && concurrentBuild) {
+            sb.append("  <properties/>\n");
+        } else {
+            sb.append("  <properties>\n");
+            if (!concurrentBuild) {
+                sb.append("    <org.jenkinsci.plugins.workflow.job.properties.DisableConcurrentBuildsJobProperty/>\n");
+            }
+            if (!parameters.isEmpty()) {
+                sb.append("    <hudson.model.ParametersDefinitionProperty>\n");
+                sb.append("      <parameterDefinitions>\n");
+                for (ParameterDefinition parameter : parameters) {
+                    sb.append(Items.XSTREAM2.toXML(parameter)).append('\n');
+                }
+                sb.append("      </parameterDefinitions>\n");
+                sb.append("    </hudson.model.ParametersDefinitionProperty>\n");
+            }
+            sb.append("  </properties>\n");
+        }
+
+        sb.append("  <definition class=\"org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition\" plugin=\"workflow-cps\">\n");
+        sb.append("    <script>").append(escape(getString(options, "script", ""))).append("</script>\n");
+        sb.append("    <sandbox>").append(getBoolean(options, "sandbox", true)).append("</sandbox>\n");
+        sb.append("  </definition>\n");
+        sb.append("  <triggers/>\n");
+        sb.append("  <disabled>").append(getBoolean(options, "disabled", false)).append("</disabled>\n");
+        sb.append("</flow-definition>");
+        return sb.toString();
+    }
+
+    private static List<ParameterDefinition> getParameters(Map<String, Object> options) {
+        Object value = options.get("parameters");
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        List<ParameterDefinition> parameters = new ArrayList<>();
+        for (Object p : (Collection<?>) value) {
+            if (p instanceof ParameterDefinition) {
+                parameters.add((ParameterDefinition) p);
+            } else {
+                //noinspection unchecked
+                parameters.add(createParameter((Map<String, Object>) p));
+            }
+        }
+        return parameters;
+    }
+
+    private static ParameterDefinition createParameter(Map<String, Object> p) {
+        String type = getString(p, "type", "string");
+        String name = getString(p, "name", null);
+        String description = getString(p, "description", null);
+        switch (type) {
+            case "deployPlan":
+                return new DeployPlanParameterDefinition(name, getString(p, "envName", null), getString(p, "defaultInventoryName", null),
+                    getString(p, "predefinedInventoryListJson", null), getString(p, "jobName", null), description);
+            case "projectBranch":
+                return new ProjectBranchParameterDefinition(name, getString(p, "defaultValue", null), description,
+                    getString(p, "projectName", null), getString(p, "targetSyncJobName", null));
+            case "hidden":
+                return new HiddenParameterDefinition(name, getString(p, "defaultValue", null), description);
+            case "boolean":
+                return new BooleanParameterDefinition(name, getBoolean(p, "defaultValue", false), description);
+            case "string":
+                return new StringParameterDefinition(name, getString(p, "defaultValue", null), description);
+            default:
+                throw new IllegalArgumentException("unsupported parameter type " + type + " of parameter " + name);
+        }
+    }
+
+    private static String getString(Map<String, Object> map, String key, String defaultValue) {
+        Object value = map.get(key);
+        return value == null ? defaultValue : value.toString();
+    }
+
+    private static boolean getBoolean(Map<String, Object> map, String key, boolean defaultValue) {
+        Object value = map.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.toString());
+    }
+
+    private static String escape(String text) {
+        return StringEscapeUtils.escapeXml(text);
+    }
+}
@@ -18,6 +18,7 @@ import hudson.scm.SCM;
 import hudson.slaves.WorkspaceList;
 import hudson.tasks.Mailer;
 import org.apache.commons.lang3.StringEscapeUtils;
+import org.codehaus.groovy.runtime.StringGroovyMethods;
 import org.jenkinsci.plugins.workflow.cps.CpsScmFlowDefinition;
 import org.jenkinsci.plugins.workflow.flow.FlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
@@ -71,10 +72,39 @@ public class PipelineScriptStepsSupport implements PipelineScriptSteps, Serializ
         throw new AbortException(obj.toString());
     }
 
+    /**
+     * the checkout options are read from the environment variables of the run, which could be set by the job parameters
+     * or by {@code withEnv} around the deploy step, since the playbooks only see {@link PipelineScriptSteps}:
+     * CHECKOUT_DEPTH (shallow clone depth), CHECKOUT_SPARSE_PATHS (comma separated paths to checkout),
+     * CHECKOUT_CHANGELOG and CHECKOUT_POLL (both default to true)
+     */
     @Override
     public void checkout(SCM scm) {
         SCMTask t = execution.createTask(SCMTask.class);
         t.setScm(scm);
+
+        Map<String, String> env = execution.getEnvvars();
+        String depth = Lambda.empty2null(env.get("CHECKOUT_DEPTH"));
+        if (depth != null) {
+            t.setDepth(Integer.parseInt(depth.trim()));
+        }
+        String sparsePaths = Lambda.empty2null(env.get("CHECKOUT_SPARSE_PATHS"));
+        if (sparsePaths != null) {
+            List<String> paths = new ArrayList<>();
+            for (String path : StringGroovyMethods.tokenize((CharSequence) sparsePaths, ',')) {
+                paths.add(path.trim());
+            }
+            t.setSparsePaths(paths);
+        }
+        String changelog = Lambda.empty2null(env.get("CHECKOUT_CHANGELOG"));
+        if (changelog != null) {
+            t.setChangelog(Boolean.parseBoolean(changelog.trim()));
+        }
+        String poll = Lambda.empty2null(env.get("CHECKOUT_POLL"));
+        if (poll != null) {
+            t.setPoll(Boolean.parseBoolean(poll.trim()));
+        }
+
         execution.executeTask(t);
     }
 
@@ -119,6 +149,14 @@ public class PipelineScriptStepsSupport implements PipelineScriptSteps, Serializ
         t.setBcc(args.get("bcc"));
         t.setReplyTo(args.get("replyTo"));
         t.setMimeType(args.get("mimeType"));
+        Object waitForDelivery = ((Map<String, ?>) args).get("wait");
+        t.setWaitForDelivery(waitForDelivery != null && Boolean.parseBoolean(waitForDelivery.toString()));
+        Object digest = ((Map<String, ?>) args).get("digest");
+        t.setDigest(digest != null && Boolean.parseBoolean(digest.toString()));
+        Object digestWindow = ((Map<String, ?>) args).get("digestWindow");
+        if (digestWindow != null) {
+            t.setDigestWindow(Long.parseLong(digestWindow.toString()) * 1000);
+        }
         execution.executeTask(t);
     }
 
@@ -137,11 +175,22 @@ public class PipelineScriptStepsSupport implements PipelineScriptSteps, Serializ
 
     @Override
     public void build(String job, List<ParameterValue> parameters, boolean wait, boolean propagate) {
+        build(job, parameters, wait, propagate, DeployGlobalConfiguration.get().isBuildReusable(job));
+    }
+
+    /**
+     * same as {@link #build(String, List, boolean, boolean)} except that if reuseSuccessfulBuild is set,
+     * the build is skipped when a successful build with the same job config, parameters and commit exists.
+     * the overload above, which is the one of {@link PipelineScriptSteps}, reuses the builds of the jobs
+     * matching {@link DeployGlobalConfiguration#getBuildAvoidanceJobs()}.
+     */
+    public void build(String job, List<ParameterValue> parameters, boolean wait, boolean propagate, boolean reuseSuccessfulBuild) {
         BuildTask t = execution.createTask(BuildTask.class);
         t.setJob(job);
         t.setParameters(parameters);
         t.setWait(wait);
         t.setPropagate(propagate);
+        t.setReuseSuccessfulBuild(reuseSuccessfulBuild);
         execution.executeTask(t);
     }
 
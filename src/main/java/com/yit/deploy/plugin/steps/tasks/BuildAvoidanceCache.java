@@ -0,0 +1,124 @@
+package com.yit.deploy.plugin.steps.tasks;
+
+import com.yit.deploy.core.parameters.inventory.DeployInventory;
+import hudson.Util;
+import hudson.model.InvisibleAction;
+import hudson.model.Items;
+import hudson.model.Job;
+import hudson.model.ParameterValue;
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the successful downstream builds triggered by {@link BuildTask} with the same job configuration,
+ * parameters and commits, so that they can be linked to instead of rebuilt.
+ *
+ * The key of a build request is saved with the build as a {@link BuildAvoidanceAction},
+ * so the cache is rebuilt from the build history and survives restarts.
+ */
+public class BuildAvoidanceCache {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildAvoidanceCache.class.getName());
+
+    /**
+     * only the most recent builds are looked up, older ones are unlikely to match the current config and commits
+     */
+    private static final int MAX_SCANNED_BUILDS = 50;
+
+    private static final BuildAvoidanceCache INSTANCE = new BuildAvoidanceCache();
+
+    public static BuildAvoidanceCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * compute the cache key of a build request.
+     *
+     * @param commits the commits the downstream job is going to check out
+     * @return null if the key could not be computed, in which case the build should never be avoided
+     */
+    public String computeKey(Job job, List<ParameterValue> parameters, String commits) {
+        if (commits == null || commits.isEmpty()) {
+            return null;
+        }
+        String configDigest;
+        try {
+            configDigest = Util.getDigestOf(Items.getConfigFile(job).getFile());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed to compute config digest of job " + job.getFullName(), e);
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(job.getFullName()).append('\n');
+        sb.append(configDigest).append('\n');
+        sb.append(commits).append('\n');
+        sb.append(normalizeParameters(parameters));
+        return Util.getDigestOf(sb.toString());
+    }
+
+    /**
+     * find the most recent successful build of the job requested with the key.
+     *
+     * @return null if not found
+     */
+    public Run find(Job<?, ?> job, String key) {
+        int scanned = 0;
+        for (Run run : job.getBuilds()) {
+            if (++scanned > MAX_SCANNED_BUILDS) {
+                break;
+            }
+            BuildAvoidanceAction action = run.getAction(BuildAvoidanceAction.class);
+            if (action != null && key.equals(action.getKey()) && !run.isBuilding() && run.getResult() == Result.SUCCESS) {
+                return run;
+            }
+        }
+        return null;
+    }
+
+    private static String normalizeParameters(List<ParameterValue> parameters) {
+        if (parameters == null) {
+            return "";
+        }
+        List<ParameterValue> sorted = new ArrayList<>(parameters);
+        sorted.sort(Comparator.comparing(ParameterValue::getName));
+
+        StringBuilder sb = new StringBuilder();
+        for (ParameterValue p : sorted) {
+            sb.append(p.getName()).append('=').append(normalizeValue(p.getValue())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String normalizeValue(Object value) {
+        if (value == null) {
+            return "";
+        }
+        if (value instanceof DeployInventory) {
+            return ((DeployInventory) value).toJson();
+        }
+        return value.toString();
+    }
+
+    /**
+     * the key of the request which triggered the build, saved with the build
+     */
+    public static class BuildAvoidanceAction extends InvisibleAction {
+        private final String key;
+
+        public BuildAvoidanceAction(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+}
@@ -1,13 +1,33 @@
 package com.yit.deploy.plugin.steps.tasks;
 
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Util;
 import hudson.console.ModelHyperlinkNote;
 import hudson.model.*;
 import hudson.model.queue.QueueTaskFuture;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.scm.SCM;
+import hudson.security.ACL;
 import jenkins.model.Jenkins;
 import jenkins.model.ParameterizedJobMixIn;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -19,6 +39,8 @@ public class BuildTask extends AbstractJenkinsTask {
     private List<ParameterValue> parameters;
     private boolean wait;
     private boolean propagate;
+    private boolean reuseSuccessfulBuild;
+    private String commit;
 
     private transient volatile QueueTaskFuture<?> taskFuture;
 
@@ -38,6 +60,20 @@ public class BuildTask extends AbstractJenkinsTask {
         this.propagate = propagate;
     }
 
+    /**
+     * link to a previous successful build with the same job config, parameters and commit instead of rebuilding
+     */
+    public void setReuseSuccessfulBuild(boolean reuseSuccessfulBuild) {
+        this.reuseSuccessfulBuild = reuseSuccessfulBuild;
+    }
+
+    /**
+     * the commit the downstream job is going to build, resolved from the scm of the downstream job if not set
+     */
+    public void setCommit(String commit) {
+        this.commit = commit;
+    }
+
     /**
      * starts the step and blocking util the step to complete or throw exceptions if failed.
      */
@@ -48,10 +84,28 @@ public class BuildTask extends AbstractJenkinsTask {
         if (project == null) {
             throw new AbortException("No parameterized job named " + job + " found");
         }
+
+        String reuseKey = null;
+        if (reuseSuccessfulBuild && wait) {
+            reuseKey = computeReuseKey((Job) project);
+            if (reuseKey != null) {
+                Run reused = BuildAvoidanceCache.get().find((Job) project, reuseKey);
+                if (reused != null) {
+                    String runUrl = ModelHyperlinkNote.encodeTo("/" + reused.getUrl(), reused.toString());
+                    getExecution().println("Skip building " + ModelHyperlinkNote.encodeTo(project)
+                        + " since the same inputs were already built successfully by " + runUrl);
+                    return null;
+                }
+            }
+        }
+
         getExecution().println("Scheduling project: " + ModelHyperlinkNote.encodeTo(project));
 
         List<Action> actions = new ArrayList<>();
         actions.add(new CauseAction(new Cause.UpstreamCause(invokingRun)));
+        if (reuseKey != null) {
+            actions.add(new BuildAvoidanceCache.BuildAvoidanceAction(reuseKey));
+        }
         if (parameters != null) {
             actions.add(new ParametersAction(parameters));
         }
@@ -93,6 +147,87 @@ public class BuildTask extends AbstractJenkinsTask {
         return null;
     }
 
+    private String computeReuseKey(Job project) {
+        String resolvedCommit = commit != null ? commit : resolveCommits(project);
+        if (resolvedCommit == null) {
+            getExecution().println("Could not resolve the commit to build for " + ModelHyperlinkNote.encodeTo(project) + ", build avoidance is skipped");
+            return null;
+        }
+        return BuildAvoidanceCache.get().computeKey(project, parameters, resolvedCommit);
+    }
+
+    /**
+     * resolve the head commits of the branches checked out by the downstream job, from the remotes of its own scm.
+     * the branch names may refer to the parameters of the build, as ${NAME}.
+     *
+     * @return null if the job is not checked out from git, or any of the heads could not be resolved
+     */
+    private String resolveCommits(Job project) {
+        if (!(project instanceof WorkflowJob)) {
+            return null;
+        }
+        Collection<? extends SCM> scms = ((WorkflowJob) project).getSCMs();
+        if (scms.isEmpty()) {
+            return null;
+        }
+        Map<String, String> variables = new HashMap<>();
+        if (parameters != null) {
+            for (ParameterValue p : parameters) {
+                if (p.getValue() != null) {
+                    variables.put(p.getName(), p.getValue().toString());
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (SCM scm : scms) {
+            if (!(scm instanceof GitSCM)) {
+                return null;
+            }
+            GitSCM gitSCM = (GitSCM) scm;
+            for (UserRemoteConfig remote : gitSCM.getUserRemoteConfigs()) {
+                for (BranchSpec branchSpec : gitSCM.getBranches()) {
+                    String branch = Util.replaceMacro(branchSpec.getName(), variables);
+                    if (branch.startsWith("*/")) {
+                        branch = branch.substring(2);
+                    }
+                    ObjectId head;
+                    try {
+                        head = createGitClient(project, gitSCM, remote).getHeadRev(remote.getUrl(), branch);
+                    } catch (IOException | InterruptedException | RuntimeException e) {
+                        getExecution().println("Failed to resolve the head of " + branch + " in " + remote.getUrl() + ": " + e);
+                        return null;
+                    }
+                    if (head == null) {
+                        return null;
+                    }
+                    sb.append(remote.getUrl()).append(' ').append(branch).append(' ').append(head.name()).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static GitClient createGitClient(Job project, GitSCM scm, UserRemoteConfig remote) throws IOException, InterruptedException {
+        Jenkins jenkins = Jenkins.get();
+        GitClient git = Git.with(TaskListener.NULL, new EnvVars())
+            .in(jenkins.getRootDir())
+            .using(scm.getGitExe(jenkins, TaskListener.NULL))
+            .getClient();
+        if (remote.getCredentialsId() != null) {
+            StandardUsernameCredentials credentials = CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(
+                    StandardUsernameCredentials.class, project, ACL.SYSTEM, URIRequirementBuilder.fromUri(remote.getUrl()).build()
+                ),
+                CredentialsMatchers.withId(remote.getCredentialsId())
+            );
+            if (credentials != null) {
+                git.addDefaultCredentials(credentials);
+            }
+        }
+        return git;
+    }
+
     /**
      * gracefully stop this step if it is running from another thread.
      */
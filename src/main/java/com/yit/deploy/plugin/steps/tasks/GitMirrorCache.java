@@ -0,0 +1,338 @@
+package com.yit.deploy.plugin.steps.tasks;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.extensions.GitSCMExtension;
+import hudson.plugins.git.extensions.impl.CloneOption;
+import hudson.plugins.git.extensions.impl.RelativeTargetDirectory;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node-local bare mirrors of git repositories, used as reference repositories of the checkouts made by {@link SCMTask},
+ * so that only the objects missing from the mirror are downloaded by each checkout.
+ *
+ * Only the first remote of a scm is mirrored, since a clone takes one reference repository,
+ * the other remotes are fetched from the network as usual.
+ *
+ * A clone borrows the objects of its reference through git alternates, which would break once the mirror
+ * is pruned, gc-ed or evicted, so the workspace is dissociated from the mirror right after the checkout,
+ * by copying the borrowed objects into it (what {@code git clone --dissociate} does).
+ *
+ * The size of a mirror is recorded after each fetch, so the eviction does not walk the files of every mirror.
+ */
+public class GitMirrorCache {
+
+    private static final String MIRRORS_PATH = "pipeline-playbook/git-mirrors";
+
+    /**
+     * file in the mirror recording its size in bytes
+     */
+    private static final String SIZE_FILE_NAME = "playbook-mirror-size";
+
+    /**
+     * mirrors used within this period are never evicted, since checkouts may still be using them
+     */
+    private static final long MIN_IDLE_BEFORE_EVICTION = TimeUnit.HOURS.toMillis(1);
+
+    private static final GitMirrorCache INSTANCE = new GitMirrorCache();
+
+    /**
+     * node name + remote url -> ongoing fetch
+     */
+    private final Map<String, CompletableFuture<FilePath>> fetching = new ConcurrentHashMap<>();
+
+    public static GitMirrorCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * fetch the mirror of the first remote of the scm on the node of the workspace,
+     * and return a copy of the scm which uses the mirror as its reference repository.
+     *
+     * @param quota max total size in bytes of all mirrors on the node
+     * @return the origin scm if it could not be mirrored
+     */
+    public GitSCM mirror(GitSCM scm, FilePath workspace, Run run, TaskListener listener, EnvVars env, long quota)
+        throws IOException, InterruptedException {
+
+        List<UserRemoteConfig> remotes = scm.getUserRemoteConfigs();
+        if (remotes.isEmpty() || remotes.get(0).getUrl() == null) {
+            return scm;
+        }
+        Computer computer = workspace.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        FilePath nodeRoot = node == null ? null : node.getRootPath();
+        if (nodeRoot == null) {
+            return scm;
+        }
+
+        UserRemoteConfig remote = remotes.get(0);
+        if (remotes.size() > 1) {
+            listener.getLogger().println("Only " + remote.getUrl() + " is mirrored, the other remotes are fetched directly");
+        }
+        FilePath mirrorsRoot = nodeRoot.child(MIRRORS_PATH);
+        FilePath mirror = mirrorsRoot.child(Util.getDigestOf(remote.getUrl()) + ".git");
+
+        String key = node.getNodeName() + "\n" + remote.getUrl();
+        CompletableFuture<FilePath> created = new CompletableFuture<>();
+        CompletableFuture<FilePath> existing = fetching.putIfAbsent(key, created);
+        if (existing != null) {
+            // another checkout is fetching the same repository on the same node, just share its result
+            listener.getLogger().println("Waiting for the ongoing fetch of git mirror " + mirror.getRemote());
+            try {
+                existing.get();
+            } catch (ExecutionException e) {
+                throw new IOException("failed to fetch git mirror " + mirror.getRemote(), e.getCause());
+            }
+        } else {
+            try {
+                fetch(scm, remote, mirror, node, run, listener, env);
+                created.complete(mirror);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                created.completeExceptionally(e);
+                throw e;
+            } finally {
+                fetching.remove(key, created);
+            }
+            evict(mirrorsRoot, mirror, quota, listener);
+        }
+
+        return withReference(scm, mirror.getRemote());
+    }
+
+    private void fetch(GitSCM scm, UserRemoteConfig remote, FilePath mirror, Node node, Run run, TaskListener listener, EnvVars env)
+        throws IOException, InterruptedException {
+
+        listener.getLogger().println("Fetching " + remote.getUrl() + " into git mirror " + mirror.getRemote());
+        GitClient git = Git.with(listener, env).in(mirror).using(scm.getGitExe(node, listener)).getClient();
+        if (remote.getCredentialsId() != null) {
+            StandardUsernameCredentials credentials = CredentialsProvider.findCredentialById(
+                remote.getCredentialsId(), StandardUsernameCredentials.class, run
+            );
+            if (credentials != null) {
+                git.addDefaultCredentials(credentials);
+            }
+        }
+
+        if (!mirror.child("HEAD").exists()) {
+            mirror.mkdirs();
+            git.init_().workspace(mirror.getRemote()).bare(true).execute();
+        }
+
+        try {
+            git.fetch_()
+                .from(new URIish(remote.getUrl()), Collections.singletonList(new RefSpec("+refs/heads/*:refs/heads/*")))
+                .prune()
+                .execute();
+        } catch (URISyntaxException e) {
+            throw new IOException("invalid git url " + remote.getUrl(), e);
+        }
+
+        // walk only this mirror, the eviction reads the recorded sizes of the others
+        mirror.child(SIZE_FILE_NAME).write(String.valueOf(mirror.act(new SizeOfDirectory())), "UTF-8");
+        // the modification time of the mirror folder is used as the last-used time for eviction
+        mirror.touch(System.currentTimeMillis());
+    }
+
+    /**
+     * copy the objects borrowed from the mirror into the repository checked out from the mirrored scm,
+     * and drop its alternates, so that it no longer depends on the mirror.
+     * does nothing if the repository does not use alternates, as it is only the case right after the clone.
+     */
+    public void dissociate(GitSCM scm, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+        Computer computer = workspace.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        if (node == null) {
+            return;
+        }
+        FilePath repository = workspace;
+        RelativeTargetDirectory relative = scm.getExtensions().get(RelativeTargetDirectory.class);
+        if (relative != null && relative.getRelativeTargetDir() != null) {
+            repository = workspace.child(relative.getRelativeTargetDir());
+        }
+        if (repository.act(new Dissociate(scm.getGitExe(node, listener)))) {
+            listener.getLogger().println("Dissociated " + repository.getRemote() + " from its git mirror");
+        }
+    }
+
+    private void evict(FilePath mirrorsRoot, FilePath current, long quota, TaskListener listener) throws IOException, InterruptedException {
+        if (quota <= 0) {
+            return;
+        }
+        List<String> evicted = mirrorsRoot.act(new EvictMirrors(quota, current.getName(), MIN_IDLE_BEFORE_EVICTION));
+        for (String name : evicted) {
+            listener.getLogger().println("Evicted git mirror " + mirrorsRoot.child(name).getRemote());
+        }
+    }
+
+    static GitSCM withReference(GitSCM scm, String reference) {
+        List<GitSCMExtension> extensions = new ArrayList<>();
+        CloneOption origin = null;
+        for (GitSCMExtension extension : scm.getExtensions()) {
+            if (extension instanceof CloneOption) {
+                origin = (CloneOption) extension;
+            } else {
+                extensions.add(extension);
+            }
+        }
+
+        CloneOption option;
+        if (origin == null) {
+            option = new CloneOption(false, false, reference, null);
+        } else {
+            option = new CloneOption(origin.isShallow(), origin.isNoTags(), reference, origin.getTimeout());
+            option.setDepth(origin.getDepth());
+        }
+        extensions.add(option);
+        return copyWithExtensions(scm, extensions);
+    }
+
+    /**
+     * create a copy of the scm, so that the scm of the job definition is never changed
+     */
+    static GitSCM copyWithExtensions(GitSCM scm, List<GitSCMExtension> extensions) {
+        return new GitSCM(
+            scm.getUserRemoteConfigs(),
+            scm.getBranches(),
+            scm.isDoGenerateSubmoduleConfigurations(),
+            scm.getSubmoduleCfg(),
+            scm.getBrowser(),
+            scm.getGitTool(),
+            extensions
+        );
+    }
+
+    private static class SizeOfDirectory extends MasterToSlaveFileCallable<Long> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Long invoke(File dir, VirtualChannel channel) {
+            return FileUtils.sizeOfDirectory(dir);
+        }
+    }
+
+    private static class Dissociate extends MasterToSlaveFileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String gitExe;
+
+        private Dissociate(String gitExe) {
+            this.gitExe = gitExe;
+        }
+
+        @Override
+        public Boolean invoke(File repository, VirtualChannel channel) throws IOException, InterruptedException {
+            File alternates = new File(repository, ".git/objects/info/alternates");
+            if (!alternates.isFile()) {
+                return false;
+            }
+            // -a without -l also packs the objects of the alternates
+            Process process = new ProcessBuilder(gitExe, "repack", "-a", "-d", "-q")
+                .directory(repository)
+                .redirectErrorStream(true)
+                .start();
+            String output;
+            try (InputStream in = process.getInputStream()) {
+                output = IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("failed to dissociate " + repository + " from its git mirror: " + output);
+            }
+            if (!alternates.delete()) {
+                throw new IOException("failed to delete " + alternates);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * delete the least recently used mirrors until the total size is within the quota
+     */
+    private static class EvictMirrors extends MasterToSlaveFileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final long quota;
+        private final String keep;
+        private final long minIdle;
+
+        private EvictMirrors(long quota, String keep, long minIdle) {
+            this.quota = quota;
+            this.keep = keep;
+            this.minIdle = minIdle;
+        }
+
+        @Override
+        public List<String> invoke(File root, VirtualChannel channel) throws IOException {
+            File[] mirrors = root.listFiles(File::isDirectory);
+            if (mirrors == null) {
+                return Collections.emptyList();
+            }
+
+            Map<File, Long> sizes = new HashMap<>();
+            long total = 0;
+            for (File mirror : mirrors) {
+                long size = readSize(mirror);
+                sizes.put(mirror, size);
+                total += size;
+            }
+
+            Arrays.sort(mirrors, Comparator.comparingLong(File::lastModified));
+            long now = System.currentTimeMillis();
+            List<String> evicted = new ArrayList<>();
+            for (File mirror : mirrors) {
+                if (total <= quota) {
+                    break;
+                }
+                if (mirror.getName().equals(keep) || now - mirror.lastModified() < minIdle) {
+                    continue;
+                }
+                FileUtils.deleteDirectory(mirror);
+                total -= sizes.get(mirror);
+                evicted.add(mirror.getName());
+            }
+            return evicted;
+        }
+
+        /**
+         * @return the size recorded by the last fetch, or walk the mirror if it is not recorded
+         */
+        private static long readSize(File mirror) {
+            File file = new File(mirror, SIZE_FILE_NAME);
+            if (file.isFile()) {
+                try {
+                    return Long.parseLong(FileUtils.readFileToString(file, StandardCharsets.UTF_8).trim());
+                } catch (IOException | NumberFormatException e) {
+                    // fall back to walking it
+                }
+            }
+            return FileUtils.sizeOfDirectory(mirror);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.yit.deploy.plugin.steps.tasks;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffers the mails sent in digest mode and merges the ones to the same recipients with the same subject
+ * into one mail, which is put into the {@link MailOutbox} when the run completes or the digest window expires.
+ *
+ * The pending digests are saved under the {@code digests} folder of the outbox on each mail added,
+ * and loaded again on startup, so they survive restarts just like the mails in the outbox.
+ */
+public class MailDigest {
+
+    private static final Logger LOGGER = Logger.getLogger(MailDigest.class.getName());
+
+    private static final String TEXT_SEPARATOR = "\n\n----------------------------------------\n\n";
+    private static final String HTML_SEPARATOR = "\n<hr/>\n";
+
+    private static MailDigest instance;
+
+    private final File directory;
+
+    /**
+     * run id -> coalescing key -> buffered mails
+     */
+    private final Map<String, Map<String, Digest>> digests = new HashMap<>();
+
+    public static synchronized MailDigest get() {
+        if (instance == null) {
+            instance = new MailDigest(new File(MailOutbox.get().getDirectory(), "digests"));
+            instance.recover();
+        }
+        return instance;
+    }
+
+    /**
+     * load the digests left by the last run, and send the ones whose run is no longer running
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void recoverDigests() {
+        get();
+    }
+
+    private MailDigest(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * buffer the mail.
+     *
+     * @param windowMillis if positive, the digest is sent after this window expires,
+     *                     otherwise it is sent when the run completes
+     */
+    public void add(Run run, MailTask mail, long windowMillis) throws IOException {
+        String runId = run.getExternalizableId();
+        String key = mail.getCoalescingKey();
+        Digest digest;
+        boolean created = false;
+        synchronized (digests) {
+            Map<String, Digest> map = digests.computeIfAbsent(runId, k -> new HashMap<>());
+            digest = map.get(key);
+            if (digest == null) {
+                long dueTime = windowMillis > 0 ? System.currentTimeMillis() + windowMillis : 0;
+                digest = new Digest(runId, key, dueTime, mail.copyWithBody(null));
+                map.put(key, digest);
+                created = true;
+            }
+            digest.bodies.add(mail.getBody());
+            getFile(digest).write(digest);
+        }
+        if (created && windowMillis > 0) {
+            schedule(digest);
+        }
+    }
+
+    /**
+     * send all buffered mails of the run
+     */
+    public void flush(Run run) {
+        Map<String, Digest> map;
+        synchronized (digests) {
+            map = digests.remove(run.getExternalizableId());
+        }
+        if (map != null) {
+            for (Digest digest : map.values()) {
+                send(digest);
+            }
+        }
+    }
+
+    private void flush(String runId, String key) {
+        Digest digest;
+        synchronized (digests) {
+            Map<String, Digest> map = digests.get(runId);
+            if (map == null) {
+                return;
+            }
+            digest = map.remove(key);
+            if (map.isEmpty()) {
+                digests.remove(runId);
+            }
+        }
+        if (digest != null) {
+            send(digest);
+        }
+    }
+
+    private void schedule(Digest digest) {
+        long delay = Math.max(0, digest.dueTime - System.currentTimeMillis());
+        Timer.get().schedule(() -> flush(digest.runId, digest.key), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void recover() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".xml"));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        List<Digest> due = new ArrayList<>();
+        synchronized (digests) {
+            for (File file : files) {
+                Digest digest;
+                try {
+                    digest = (Digest) new XmlFile(Jenkins.XSTREAM2, file).read();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "failed to load mail digest " + file, e);
+                    continue;
+                }
+                Run run = Run.fromExternalizableId(digest.runId);
+                if (digest.dueTime <= 0 && (run == null || !run.isBuilding())) {
+                    // the run completed while jenkins was down
+                    due.add(digest);
+                    continue;
+                }
+                digests.computeIfAbsent(digest.runId, k -> new HashMap<>()).put(digest.key, digest);
+                if (digest.dueTime > 0) {
+                    schedule(digest);
+                }
+            }
+        }
+        LOGGER.info(files.length + " mail digests are recovered");
+        for (Digest digest : due) {
+            send(digest);
+        }
+    }
+
+    private void send(Digest digest) {
+        MailTask template = digest.template;
+        String separator = template.isHtml() ? HTML_SEPARATOR : TEXT_SEPARATOR;
+        String body = String.join(separator, digest.bodies);
+        try {
+            MailOutbox.get().enqueue(template.copyWithBody(body).buildMimeMessage(TaskListener.NULL));
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "failed to send mail digest of " + digest.bodies.size() + " mails", e);
+            return;
+        }
+        // deleted only once the mail is in the outbox, so a crash in between sends it twice rather than never
+        File file = getFile(digest).getFile();
+        if (!file.delete() && file.exists()) {
+            LOGGER.warning("failed to delete sent mail digest " + file);
+        }
+    }
+
+    private XmlFile getFile(Digest digest) {
+        return new XmlFile(Jenkins.XSTREAM2, new File(directory, digest.id + ".xml"));
+    }
+
+    private static class Digest {
+        /**
+         * a new digest with the same run and key may be started while this one is being sent, so it has its own file
+         */
+        private final String id = UUID.randomUUID().toString();
+        private final String runId;
+        private final String key;
+        /**
+         * when the digest window expires, 0 to send it when the run completes
+         */
+        private final long dueTime;
+        private final MailTask template;
+        private final List<String> bodies = new ArrayList<>();
+
+        private Digest(String runId, String key, long dueTime, MailTask template) {
+            this.runId = runId;
+            this.key = key;
+            this.dueTime = dueTime;
+            this.template = template;
+        }
+    }
+
+    @Extension
+    public static class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
+            MailDigest.get().flush(run);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.yit.deploy.plugin.steps.tasks;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.tasks.Mailer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent local outbox of mails.
+ *
+ * Messages are stored under ${JENKINS_HOME}/pipeline-playbook/mail-outbox before being sent by a background sender,
+ * which sends all pending messages through one SMTP connection per batch and retries failed ones with an exponential backoff.
+ * The sender runs on its own thread, since SMTP sends block for as long as the server takes.
+ * Messages still in the outbox are resent once Jenkins has started again.
+ */
+public class MailOutbox {
+
+    private static final Logger LOGGER = Logger.getLogger(MailOutbox.class.getName());
+
+    private static final String MESSAGE_FILE_SUFFIX = ".eml";
+
+    private static final int BATCH_SIZE = 50;
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long INITIAL_BACKOFF = 5000;
+    private static final long MAX_BACKOFF = 30 * 60 * 1000;
+
+    private static MailOutbox instance;
+
+    private final File directory;
+    private final File failedDirectory;
+    private final Supplier<Session> sessionFactory;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * message id -> pending delivery
+     */
+    private final Map<String, Delivery> deliveries = new ConcurrentHashMap<>();
+
+    private final Object sendingLock = new Object();
+
+    private boolean flushScheduled;
+
+    public static synchronized MailOutbox get() {
+        if (instance == null) {
+            File root = new File(Jenkins.get().getRootDir(), "pipeline-playbook/mail-outbox");
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "mail-outbox")
+            );
+            instance = new MailOutbox(root, () -> Mailer.descriptor().createSession(), executor);
+            instance.recover();
+        }
+        return instance;
+    }
+
+    /**
+     * resend the mails left in the outbox by the last run, without waiting for a new mail to be sent
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void recoverOutbox() {
+        get();
+    }
+
+    MailOutbox(File directory, Supplier<Session> sessionFactory, ScheduledExecutorService executor) {
+        this.directory = directory;
+        this.failedDirectory = new File(directory, "failed");
+        this.sessionFactory = sessionFactory;
+        this.executor = executor;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * store the message into the outbox and schedule sending it.
+     *
+     * @return the receipt to wait for the delivery with
+     */
+    public Receipt enqueue(MimeMessage message) throws IOException, MessagingException {
+        String id = UUID.randomUUID().toString();
+        message.saveChanges();
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create mail outbox directory " + directory);
+        }
+        File tmp = new File(directory, id + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            message.writeTo(out);
+        }
+        Files.move(tmp.toPath(), getMessageFile(id).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        Delivery delivery = new Delivery(id);
+        deliveries.put(id, delivery);
+        scheduleFlush(0);
+        return new Receipt(id, delivery.future);
+    }
+
+    /**
+     * pick up the messages left in the outbox by the last run
+     */
+    void recover() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(MESSAGE_FILE_SUFFIX));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        for (File file : files) {
+            String id = file.getName().substring(0, file.getName().length() - MESSAGE_FILE_SUFFIX.length());
+            deliveries.putIfAbsent(id, new Delivery(id));
+        }
+        LOGGER.info(files.length + " mails are recovered from outbox");
+        scheduleFlush(0);
+    }
+
+    private synchronized void scheduleFlush(long delay) {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        executor.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        synchronized (this) {
+            flushScheduled = false;
+        }
+
+        synchronized (sendingLock) {
+            try {
+                while (true) {
+                    List<Delivery> batch = nextBatch();
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    sendBatch(batch);
+                }
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "failed to flush mail outbox", t);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for (Delivery delivery : deliveries.values()) {
+            next = Math.min(next, delivery.nextAttemptTime);
+        }
+        if (next != Long.MAX_VALUE) {
+            scheduleFlush(Math.max(0, next - now));
+        }
+    }
+
+    private List<Delivery> nextBatch() {
+        long now = System.currentTimeMillis();
+        List<Delivery> batch = new ArrayList<>();
+        for (Delivery delivery : deliveries.values()) {
+            if (delivery.nextAttemptTime <= now) {
+                batch.add(delivery);
+                if (batch.size() >= BATCH_SIZE) {
+                    break;
+                }
+            }
+        }
+        return batch;
+    }
+
+    private void sendBatch(List<Delivery> batch) {
+        Session session = sessionFactory.get();
+        Transport transport;
+        try {
+            transport = session.getTransport("smtp");
+            transport.connect();
+        } catch (MessagingException e) {
+            LOGGER.log(Level.WARNING, "failed to connect to SMTP server, " + batch.size() + " mails will be retried", e);
+            for (Delivery delivery : batch) {
+                onFailed(delivery, e);
+            }
+            return;
+        }
+
+        try {
+            for (Delivery delivery : batch) {
+                try {
+                    MimeMessage message = loadMessage(session, delivery.id);
+                    Address[] recipients = message.getAllRecipients();
+                    transport.sendMessage(message, recipients);
+                    onDelivered(delivery);
+                } catch (SendFailedException e) {
+                    if (e.getValidSentAddresses() != null && e.getValidSentAddresses().length > 0) {
+                        // partially sent, retrying will only bother those who have already received it
+                        LOGGER.log(Level.WARNING, "mail " + delivery.id + " is partially sent", e);
+                        onDelivered(delivery);
+                    } else {
+                        onFailed(delivery, e);
+                    }
+                } catch (MessagingException | IOException e) {
+                    onFailed(delivery, e);
+                }
+            }
+        } finally {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                LOGGER.log(Level.FINE, "failed to close SMTP transport", e);
+            }
+        }
+    }
+
+    private MimeMessage loadMessage(Session session, String id) throws IOException, MessagingException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(getMessageFile(id)))) {
+            return new MimeMessage(session, in);
+        }
+    }
+
+    private void onDelivered(Delivery delivery) {
+        deliveries.remove(delivery.id);
+        File file = getMessageFile(delivery.id);
+        if (!file.delete() && file.exists()) {
+            LOGGER.warning("failed to delete delivered mail " + file);
+        }
+        delivery.future.complete(null);
+    }
+
+    private void onFailed(Delivery delivery, Exception e) {
+        delivery.attempts++;
+        if (delivery.attempts < MAX_ATTEMPTS) {
+            long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << (delivery.attempts - 1));
+            delivery.nextAttemptTime = System.currentTimeMillis() + backoff;
+            LOGGER.log(Level.INFO, "failed to send mail " + delivery.id + ", retry in " + backoff + "ms: " + e.getMessage());
+            return;
+        }
+
+        LOGGER.log(Level.WARNING, "give up sending mail " + delivery.id + " after " + delivery.attempts + " attempts", e);
+        deliveries.remove(delivery.id);
+        try {
+            if (failedDirectory.isDirectory() || failedDirectory.mkdirs()) {
+                Files.move(getMessageFile(delivery.id).toPath(), new File(failedDirectory, delivery.id + MESSAGE_FILE_SUFFIX).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "failed to move mail " + delivery.id + " to " + failedDirectory, ex);
+        }
+        delivery.future.completeExceptionally(e);
+    }
+
+    private File getMessageFile(String id) {
+        return new File(directory, id + MESSAGE_FILE_SUFFIX);
+    }
+
+    /**
+     * handle of a message put into the outbox. Every caller gets its own, so that one giving up waiting
+     * does not affect the others, nor the delivery of the message itself.
+     */
+    public static class Receipt {
+        private final String id;
+        private final CompletableFuture<Void> waiting = new CompletableFuture<>();
+
+        private Receipt(String id, CompletableFuture<Void> delivered) {
+            this.id = id;
+            delivered.whenComplete((v, e) -> {
+                if (e == null) {
+                    waiting.complete(null);
+                } else {
+                    waiting.completeExceptionally(e);
+                }
+            });
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * block until the message is delivered to the SMTP relay
+         *
+         * @throws ExecutionException if the message is given up after retries
+         * @throws java.util.concurrent.CancellationException if {@link #stopWaiting()} is called
+         */
+        public void awaitDelivery() throws InterruptedException, ExecutionException {
+            waiting.get();
+        }
+
+        /**
+         * release the threads waiting in {@link #awaitDelivery()}, the message stays in the outbox
+         */
+        public void stopWaiting() {
+            waiting.cancel(false);
+        }
+    }
+
+    private static class Delivery {
+        private final String id;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private volatile int attempts;
+        private volatile long nextAttemptTime;
+
+        private Delivery(String id) {
+            this.id = id;
+        }
+    }
+}
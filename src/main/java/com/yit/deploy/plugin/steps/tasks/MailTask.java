@@ -1,14 +1,16 @@
 package com.yit.deploy.plugin.steps.tasks;
 
 import hudson.AbortException;
+import hudson.model.TaskListener;
 import jenkins.plugins.mailer.tasks.MimeMessageBuilder;
 import org.apache.commons.lang.StringUtils;
 import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.Transport;
 import javax.mail.internet.MimeMessage;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 
 public class MailTask extends AbstractJenkinsTask {
@@ -31,6 +33,14 @@ public class MailTask extends AbstractJenkinsTask {
 
     private String mimeType;
 
+    private boolean waitForDelivery;
+
+    private boolean digest;
+
+    private long digestWindow;
+
+    private transient volatile MailOutbox.Receipt deliveryReceipt;
+
     public void setCharset(String charset) {
         this.charset = charset;
     }
@@ -67,13 +77,106 @@ public class MailTask extends AbstractJenkinsTask {
         this.mimeType = mimeType;
     }
 
+    /**
+     * block the deploy until the mail is delivered to the SMTP relay, instead of just putting it into the outbox.
+     * not supported in digest mode, since the digest is only sent later.
+     */
+    public void setWaitForDelivery(boolean waitForDelivery) {
+        this.waitForDelivery = waitForDelivery;
+    }
+
+    /**
+     * merge this mail with others to the same recipients with the same subject sent within the run,
+     * and send them as one mail when the run completes
+     */
+    public void setDigest(boolean digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * if positive, the digest is sent after this window (in milliseconds) expires instead of at the end of the run
+     */
+    public void setDigestWindow(long digestWindow) {
+        this.digestWindow = digestWindow;
+    }
+
+    String getBody() {
+        return body;
+    }
+
+    boolean isHtml() {
+        return mimeType != null && mimeType.toLowerCase().startsWith("text/html");
+    }
+
+    /**
+     * mails with the same key can be merged into one mail
+     */
+    String getCoalescingKey() {
+        return String.join("\n", normalizeAddresses(to), normalizeAddresses(cc), normalizeAddresses(bcc),
+            String.valueOf(subject), String.valueOf(from), String.valueOf(replyTo), String.valueOf(charset), String.valueOf(mimeType));
+    }
+
+    private static String normalizeAddresses(String addresses) {
+        if (addresses == null) {
+            return "";
+        }
+        TreeSet<String> set = new TreeSet<>();
+        for (String address : addresses.split("[,;\\s]+")) {
+            if (!address.isEmpty()) {
+                set.add(address.toLowerCase());
+            }
+        }
+        return String.join(",", set);
+    }
+
+    /**
+     * create a copy of this mail, detached from the execution
+     */
+    MailTask copyWithBody(String body) {
+        MailTask t = new MailTask();
+        t.charset = charset;
+        t.subject = subject;
+        t.body = body;
+        t.from = from;
+        t.to = to;
+        t.cc = cc;
+        t.bcc = bcc;
+        t.replyTo = replyTo;
+        t.mimeType = mimeType;
+        return t;
+    }
+
     /**
      * starts the step and blocking util the step to complete or throw exceptions if failed.
      */
     @Override
-    public Object start() throws AbortException, UnsupportedEncodingException, MessagingException {
-        MimeMessage mimeMessage = buildMimeMessage();
-        Transport.send(mimeMessage);
+    public Object start() throws IOException, MessagingException, InterruptedException {
+        if (digest) {
+            if (waitForDelivery) {
+                throw new AbortException("Email not sent. 'wait' is not supported with 'digest', since the digest is sent after the run or the digest window.");
+            }
+            // validate it now, rather than failing silently at the end of the run
+            buildMimeMessage(getTaskListener());
+            MailDigest.get().add(getRun(), this, digestWindow);
+            return null;
+        }
+
+        MimeMessage mimeMessage = buildMimeMessage(getTaskListener());
+        MailOutbox.Receipt receipt = MailOutbox.get().enqueue(mimeMessage);
+        if (!waitForDelivery) {
+            return null;
+        }
+
+        deliveryReceipt = receipt;
+        try {
+            receipt.awaitDelivery();
+        } catch (CancellationException e) {
+            throw new AbortException("waiting for mail delivery is cancelled");
+        } catch (ExecutionException e) {
+            throw new AbortException("Email not sent: " + e.getCause().getMessage());
+        } finally {
+            deliveryReceipt = null;
+        }
         return null;
     }
 
@@ -82,14 +185,18 @@ public class MailTask extends AbstractJenkinsTask {
      */
     @Override
     public void stop() {
+        MailOutbox.Receipt receipt = deliveryReceipt;
+        if (receipt != null) {
+            receipt.stopWaiting();
+        }
     }
 
-    private MimeMessage buildMimeMessage() throws UnsupportedEncodingException, MessagingException, AbortException {
+    MimeMessage buildMimeMessage(TaskListener listener) throws IOException, MessagingException {
         if (StringUtils.isBlank(subject) || StringUtils.isBlank(body)) {
             throw new AbortException("Email not sent. All mandatory properties must be supplied ('subject', 'body').");
         }
 
-        MimeMessageBuilder messageBuilder = new MimeMessageBuilder().setListener(getTaskListener());
+        MimeMessageBuilder messageBuilder = new MimeMessageBuilder().setListener(listener);
 
         if (subject != null) {
             messageBuilder.setSubject(subject);
@@ -1,13 +1,24 @@
 package com.yit.deploy.plugin.steps.tasks;
 
+import com.yit.deploy.plugin.steps.DeployGlobalConfiguration;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.extensions.GitSCMExtension;
+import hudson.plugins.git.extensions.impl.CloneOption;
+import hudson.plugins.git.extensions.impl.SparseCheckoutPath;
+import hudson.plugins.git.extensions.impl.SparseCheckoutPaths;
 import hudson.scm.SCM;
 import org.jenkinsci.plugins.workflow.steps.scm.GenericSCMStep;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class SCMTask extends AbstractJenkinsTask {
 
     private SCM scm;
     private boolean poll = true;
     private boolean changelog = true;
+    private Integer depth;
+    private List<String> sparsePaths;
 
     public void setScm(SCM scm) {
         this.scm = scm;
@@ -21,16 +32,52 @@ public class SCMTask extends AbstractJenkinsTask {
         this.poll = poll;
     }
 
+    /**
+     * fetch only the latest commits of the given depth
+     */
+    public void setDepth(Integer depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * checkout only these paths
+     */
+    public void setSparsePaths(List<String> sparsePaths) {
+        this.sparsePaths = sparsePaths;
+    }
+
     /**
      * starts the step and blocking util the step to complete or throw exceptions if failed.
      */
     @Override
     public Object start() {
-        GenericSCMStep step = new GenericSCMStep(scm);
-        step.setPoll(poll);
-        step.setChangelog(changelog);
         try {
+            SCM target = scm;
+            if (target instanceof GitSCM) {
+                target = applyCheckoutOptions((GitSCM) target);
+            }
+            DeployGlobalConfiguration config = DeployGlobalConfiguration.get();
+            boolean mirrored = false;
+            if (config.isGitMirrorCacheEnabled() && target instanceof GitSCM) {
+                SCM unmirrored = target;
+                target = GitMirrorCache.get().mirror(
+                    (GitSCM) target,
+                    getExecution().getPwd(),
+                    getRun(),
+                    getTaskListener(),
+                    getExecution().getEnvvars(),
+                    config.getGitMirrorCacheQuota() * 1024 * 1024
+                );
+                mirrored = target != unmirrored;
+            }
+
+            GenericSCMStep step = new GenericSCMStep(target);
+            step.setPoll(poll);
+            step.setChangelog(changelog);
             step.checkout(getRun(), getExecution().getPwd(), getTaskListener(), getLaunch());
+            if (mirrored) {
+                GitMirrorCache.get().dissociate((GitSCM) target, getExecution().getPwd(), getTaskListener());
+            }
         } catch (RuntimeException e) {
             throw e;
         } catch (Exception e) {
@@ -39,6 +86,44 @@ public class SCMTask extends AbstractJenkinsTask {
         return null;
     }
 
+    private GitSCM applyCheckoutOptions(GitSCM scm) {
+        boolean shallow = depth != null && depth > 0;
+        boolean sparse = sparsePaths != null && !sparsePaths.isEmpty();
+        if (!shallow && !sparse) {
+            return scm;
+        }
+
+        List<GitSCMExtension> extensions = new ArrayList<>();
+        CloneOption cloneOption = null;
+        for (GitSCMExtension extension : scm.getExtensions()) {
+            if (extension instanceof CloneOption) {
+                cloneOption = (CloneOption) extension;
+            } else if (!(sparse && extension instanceof SparseCheckoutPaths)) {
+                extensions.add(extension);
+            }
+        }
+
+        if (shallow) {
+            CloneOption option = cloneOption == null
+                ? new CloneOption(true, false, null, null)
+                : new CloneOption(true, cloneOption.isNoTags(), cloneOption.getReference(), cloneOption.getTimeout());
+            option.setDepth(depth);
+            extensions.add(option);
+        } else if (cloneOption != null) {
+            extensions.add(cloneOption);
+        }
+
+        if (sparse) {
+            List<SparseCheckoutPath> paths = new ArrayList<>(sparsePaths.size());
+            for (String path : sparsePaths) {
+                paths.add(new SparseCheckoutPath(path));
+            }
+            extensions.add(new SparseCheckoutPaths(paths));
+        }
+
+        return GitMirrorCache.copyWithExtensions(scm, extensions);
+    }
+
     /**
      * gracefully stop this step if it is running from another thread.
      */
@@ -1,9 +1,21 @@
 package com.yit.deploy.plugin.steps.tasks;
 
+import hudson.AbortException;
+import jenkins.util.Timer;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 public class SleepTask extends AbstractJenkinsTask {
 
     private long time;
 
+    private transient volatile CompletableFuture<Void> wakeUp;
+    private transient volatile boolean stopped;
+
     public void setTime(long time) {
         this.time = time;
     }
@@ -12,8 +24,25 @@ public class SleepTask extends AbstractJenkinsTask {
      * starts the step and blocking util the step to complete or throw exceptions if failed.
      */
     @Override
-    public Object start() throws InterruptedException {
-        Thread.sleep(time);
+    public Object start() throws InterruptedException, AbortException {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        wakeUp = future;
+        if (stopped) {
+            future.cancel(false);
+        }
+
+        // the calling thread still blocks in future.get() until the shared jenkins timer wakes it up or the task is stopped
+        ScheduledFuture<?> timer = Timer.get().schedule(() -> future.complete(null), time, TimeUnit.MILLISECONDS);
+        try {
+            future.get();
+        } catch (CancellationException e) {
+            throw new AbortException("sleep is cancelled");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            timer.cancel(false);
+            wakeUp = null;
+        }
         return null;
     }
 
@@ -22,6 +51,10 @@ public class SleepTask extends AbstractJenkinsTask {
      */
     @Override
     public void stop() {
-        Thread.currentThread().interrupt();
+        stopped = true;
+        CompletableFuture<Void> future = wakeUp;
+        if (future != null) {
+            future.cancel(false);
+        }
     }
 }
@@ -0,0 +1,143 @@
+package com.yit.deploy.plugin.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.*;
+
+/**
+ * Three-way merge of json trees: the changes made from base to ours are applied onto theirs,
+ * and a conflict is only raised if both sides changed the same field to different values.
+ *
+ * Arrays of objects identified by one of the {@link #IDENTITY_FIELDS} are merged element by element,
+ * so that two sides could change different items of the same list. Other arrays are merged as a whole.
+ */
+public class JsonMerge {
+
+    private static final String[] IDENTITY_FIELDS = {"projectName", "id", "name"};
+
+    private JsonMerge() {
+    }
+
+    public static class ConflictException extends RuntimeException {
+        private final String path;
+
+        public ConflictException(String path) {
+            super("both sides changed " + (path.isEmpty() ? "/" : path));
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * @return the merged tree, null if it is removed
+     * @throws ConflictException if both sides changed the same field differently
+     */
+    public static JsonElement merge(JsonElement base, JsonElement ours, JsonElement theirs) {
+        return merge(base, ours, theirs, "");
+    }
+
+    private static JsonElement merge(JsonElement base, JsonElement ours, JsonElement theirs, String path) {
+        if (Objects.equals(ours, base) || Objects.equals(ours, theirs)) {
+            return theirs;
+        }
+        if (Objects.equals(theirs, base)) {
+            return ours;
+        }
+        if (base == null || ours == null || theirs == null) {
+            // added by both sides differently, or removed by one side and changed by the other
+            throw new ConflictException(path);
+        }
+        if (base.isJsonObject() && ours.isJsonObject() && theirs.isJsonObject()) {
+            return mergeObjects(base.getAsJsonObject(), ours.getAsJsonObject(), theirs.getAsJsonObject(), path);
+        }
+        if (base.isJsonArray() && ours.isJsonArray() && theirs.isJsonArray()) {
+            String identity = findIdentity(base.getAsJsonArray(), ours.getAsJsonArray(), theirs.getAsJsonArray());
+            if (identity != null) {
+                return mergeArrays(base.getAsJsonArray(), ours.getAsJsonArray(), theirs.getAsJsonArray(), identity, path);
+            }
+        }
+        throw new ConflictException(path);
+    }
+
+    private static JsonObject mergeObjects(JsonObject base, JsonObject ours, JsonObject theirs, String path) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (Map.Entry<String, JsonElement> entry : theirs.entrySet()) {
+            keys.add(entry.getKey());
+        }
+        for (Map.Entry<String, JsonElement> entry : ours.entrySet()) {
+            keys.add(entry.getKey());
+        }
+        for (Map.Entry<String, JsonElement> entry : base.entrySet()) {
+            keys.add(entry.getKey());
+        }
+
+        JsonObject result = new JsonObject();
+        for (String key : keys) {
+            JsonElement merged = merge(base.get(key), ours.get(key), theirs.get(key), path + "/" + key);
+            if (merged != null) {
+                result.add(key, merged);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * merge the elements by their identity, in the order of theirs, followed by the ones only added by ours
+     */
+    private static JsonArray mergeArrays(JsonArray base, JsonArray ours, JsonArray theirs, String identity, String path) {
+        Map<String, JsonElement> baseMap = index(base, identity);
+        Map<String, JsonElement> ourMap = index(ours, identity);
+        Map<String, JsonElement> theirMap = index(theirs, identity);
+
+        Set<String> ids = new LinkedHashSet<>(theirMap.keySet());
+        ids.addAll(ourMap.keySet());
+        ids.addAll(baseMap.keySet());
+
+        JsonArray result = new JsonArray();
+        for (String id : ids) {
+            JsonElement merged = merge(baseMap.get(id), ourMap.get(id), theirMap.get(id), path + "/" + id);
+            if (merged != null) {
+                result.add(merged);
+            }
+        }
+        return result;
+    }
+
+    private static String findIdentity(JsonArray... arrays) {
+        for (String field : IDENTITY_FIELDS) {
+            boolean found = true;
+            for (JsonArray array : arrays) {
+                if (index(array, field) == null) {
+                    found = false;
+                    break;
+                }
+            }
+            if (found) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return null if any element is not an object with a unique value of the field
+     */
+    private static Map<String, JsonElement> index(JsonArray array, String field) {
+        Map<String, JsonElement> map = new LinkedHashMap<>();
+        for (JsonElement element : array) {
+            if (!element.isJsonObject()) {
+                return null;
+            }
+            JsonElement id = element.getAsJsonObject().get(field);
+            if (id == null || !id.isJsonPrimitive() || map.put(id.getAsString(), element) != null) {
+                return null;
+            }
+        }
+        return map;
+    }
+}
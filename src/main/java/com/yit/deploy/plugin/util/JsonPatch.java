@@ -0,0 +1,165 @@
+package com.yit.deploy.plugin.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies a subset of JSON patch (RFC 6902) to a json tree: the add, remove, replace and test operations,
+ * each of which is an object like {@code {"op": "replace", "path": "/plans/0/items/3/enabled", "value": false}}.
+ *
+ * The tree is modified in place, so pass a copy if the patch may fail half way.
+ */
+public class JsonPatch {
+
+    private JsonPatch() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if an operation is invalid or could not be applied
+     */
+    public static void apply(JsonElement target, JsonArray operations) {
+        for (JsonElement element : operations) {
+            if (!element.isJsonObject()) {
+                throw new IllegalArgumentException("invalid patch operation " + element);
+            }
+            JsonObject operation = element.getAsJsonObject();
+            String op = getString(operation, "op");
+            List<String> path = parsePath(getString(operation, "path"));
+            if (path.isEmpty()) {
+                throw new IllegalArgumentException("could not patch the root of the document");
+            }
+            JsonElement parent = resolve(target, path.subList(0, path.size() - 1));
+            String key = path.get(path.size() - 1);
+            switch (op) {
+                case "add":
+                    add(parent, key, getValue(operation));
+                    break;
+                case "remove":
+                    remove(parent, key);
+                    break;
+                case "replace":
+                    remove(parent, key);
+                    add(parent, key, getValue(operation));
+                    break;
+                case "test":
+                    if (!getValue(operation).equals(get(parent, key))) {
+                        throw new IllegalArgumentException("test failed at " + getString(operation, "path"));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported patch operation " + op);
+            }
+        }
+    }
+
+    private static void add(JsonElement parent, String key, JsonElement value) {
+        if (parent.isJsonObject()) {
+            parent.getAsJsonObject().add(key, value);
+        } else if (parent.isJsonArray()) {
+            JsonArray array = parent.getAsJsonArray();
+            if ("-".equals(key)) {
+                array.add(value);
+                return;
+            }
+            int index = parseIndex(key, array.size() + 1);
+            // JsonArray has no insert, rebuild the tail
+            List<JsonElement> tail = new ArrayList<>();
+            while (array.size() > index) {
+                tail.add(array.remove(index));
+            }
+            array.add(value);
+            for (JsonElement e : tail) {
+                array.add(e);
+            }
+        } else {
+            throw new IllegalArgumentException("could not add " + key + " to a value");
+        }
+    }
+
+    private static void remove(JsonElement parent, String key) {
+        if (parent.isJsonObject()) {
+            if (parent.getAsJsonObject().remove(key) == null) {
+                throw new IllegalArgumentException("no such field " + key);
+            }
+        } else if (parent.isJsonArray()) {
+            JsonArray array = parent.getAsJsonArray();
+            array.remove(parseIndex(key, array.size()));
+        } else {
+            throw new IllegalArgumentException("could not remove " + key + " from a value");
+        }
+    }
+
+    private static JsonElement get(JsonElement parent, String key) {
+        JsonElement child;
+        if (parent.isJsonObject()) {
+            child = parent.getAsJsonObject().get(key);
+        } else if (parent.isJsonArray()) {
+            JsonArray array = parent.getAsJsonArray();
+            child = array.get(parseIndex(key, array.size()));
+        } else {
+            child = null;
+        }
+        if (child == null) {
+            throw new IllegalArgumentException("no such field " + key);
+        }
+        return child;
+    }
+
+    private static JsonElement resolve(JsonElement target, List<String> path) {
+        JsonElement current = target;
+        for (String key : path) {
+            current = get(current, key);
+        }
+        return current;
+    }
+
+    /**
+     * parse a json pointer (RFC 6901)
+     */
+    private static List<String> parsePath(String path) {
+        List<String> keys = new ArrayList<>();
+        if (path.isEmpty()) {
+            return keys;
+        }
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("invalid path " + path);
+        }
+        for (String key : path.substring(1).split("/", -1)) {
+            keys.add(key.replace("~1", "/").replace("~0", "~"));
+        }
+        return keys;
+    }
+
+    private static int parseIndex(String key, int bound) {
+        int index;
+        try {
+            index = Integer.parseInt(key);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid array index " + key);
+        }
+        if (index < 0 || index >= bound) {
+            throw new IllegalArgumentException("array index " + key + " is out of bound");
+        }
+        return index;
+    }
+
+    private static String getString(JsonObject operation, String name) {
+        JsonElement value = operation.get(name);
+        if (value == null || !value.isJsonPrimitive()) {
+            throw new IllegalArgumentException("missing " + name + " in patch operation " + operation);
+        }
+        return value.getAsString();
+    }
+
+    private static JsonElement getValue(JsonObject operation) {
+        JsonElement value = operation.get("value");
+        if (value == null) {
+            throw new IllegalArgumentException("missing value in patch operation " + operation);
+        }
+        return value;
+    }
+}
@@ -240,14 +240,93 @@ class SharingManager {
         }
 
         this.log("sharing");
-        this.fetchingThread.start();
+        if (!this.openEventSource()) {
+            this.fetchingThread.start();
+        }
         this.pushingThread.start();
 
         this.running(true);
     }
 
+    /**
+     * receive the changes pushed by server instead of polling, if the browser supports server-sent events
+     * @return {boolean} false if not supported
+     */
+    openEventSource() {
+        let service = this.serviceObject;
+        if (!service.eventsUrl || !window.EventSource) {
+            return false;
+        }
+        let url = service.eventsUrl + "?" + jQuery.param({
+            job: service.jobName,
+            parameter: service.parameterName,
+            inventory: this.inventory.name(),
+            version: this.base.version
+        });
+        let source = new EventSource(url);
+        source.addEventListener("change", event => {
+            try {
+                this.received(JSON.parse(event.data));
+            } catch (e) {
+                console.error(e);
+            }
+        });
+        source.onerror = () => {
+            // the browser reconnects with the last received version by itself, unless the stream is rejected by server
+            if (source.readyState === EventSource.CLOSED && this.eventSource === source) {
+                this.eventSource = null;
+                if (this.running()) {
+                    this.fetchingThread.start();
+                }
+            }
+        };
+        this.eventSource = source;
+        return true;
+    }
+
+    /**
+     * @param delta {{version: Number, sharedBy: String, changes: {id: String}[], reset: Boolean}} pushed by server
+     */
+    received(delta) {
+        if (delta.version <= this.base.version) {
+            return;
+        }
+        if (!delta.reset && delta.version === this.base.version + 1 && this.outgoing === this.base
+            && this.changeId && this.findChangeById(delta, this.changeId)) {
+            // the new version is just what we have pushed, no need to fetch it
+            this.fetched({responseJSON: Object.assign({}, this.base, {
+                version: delta.version,
+                sharedBy: delta.sharedBy,
+                changes: delta.changes
+            })});
+            return;
+        }
+        this.serviceObject.httpGetDeployInventory(this.inventory.name(), response => {
+            try {
+                this.fetched(response);
+            } catch (e) {
+                console.error(e);
+            }
+        });
+    }
+
     fetch(callback) {
-        this.serviceObject.httpPollDeployInventory(this.inventory.name(), this.base.version + 1, 30000, callback);
+        let service = this.serviceObject;
+        let inventoryName = this.inventory.name();
+        let version = this.base.version + 1;
+        if (!service.pollUrl) {
+            service.httpPollDeployInventory(inventoryName, version, 30000, callback);
+            return;
+        }
+        // the async poll endpoint does not hold a request thread while waiting,
+        // fall back to the blocking bound method if it is not available
+        jQuery.ajax({
+            url: service.pollUrl,
+            data: {job: service.jobName, parameter: service.parameterName, inventory: inventoryName, version: version, timeout: 30000},
+            dataType: "json",
+            cache: false
+        }).done(data => callback({responseJSON: data}))
+            .fail(() => service.httpPollDeployInventory(inventoryName, version, 30000, callback));
     }
 
     fetched(response) {
@@ -335,7 +414,25 @@ class SharingManager {
         this.draftHasChanges = false;
         this.changeId = generateUUID();
         this.pushing(true);
-        this.serviceObject.httpSaveDeployInventory(JSON.stringify(this.outgoing), this.changeId, callback);
+
+        let service = this.serviceObject;
+        let outgoing = this.outgoing;
+        let changeId = this.changeId;
+        if (!service.httpPatchDeployInventory) {
+            service.httpSaveDeployInventory(JSON.stringify(outgoing), changeId, callback);
+            return;
+        }
+        // only send what we changed against the base, the fields maintained by server are left out
+        let patch = createJsonPatch(this.base, outgoing).filter(op => !/^\/(version|changes|updateDate)(\/|$)/.test(op.path));
+        service.httpPatchDeployInventory(this.inventory.name(), this.base.version, JSON.stringify(patch), changeId, response => {
+            let result = response.responseJSON;
+            if (result && result.status && result.status.code === 422) {
+                // the patch could not be applied to what is stored, send the whole inventory instead
+                service.httpSaveDeployInventory(JSON.stringify(outgoing), changeId, callback);
+            } else {
+                callback(response);
+            }
+        });
     }
 
     pushed(response) {
@@ -373,6 +470,10 @@ class SharingManager {
 
         this.pushingThread.stop();
         this.fetchingThread.stop();
+        if (this.eventSource) {
+            this.eventSource.close();
+            this.eventSource = null;
+        }
 
         if (this.outgoing !== this.base) {
             this.outgoing = this.base;
@@ -715,6 +816,9 @@ class ViewModel {
     }
 }
 
+const SAVED_INVENTORY_PAGE_SIZE = 50;
+const SAVED_INVENTORY_SEARCH_SIZE = 8;
+
 class DeployPlanViewModel extends ViewModel {
     /**
      * @param {EntityChangeMonitor} monitor
@@ -731,6 +835,10 @@ class DeployPlanViewModel extends ViewModel {
         this.currentUser = currentUser;
         this.environment = environmentJson;
         this.savedInventoryNames = ko.observableArray([]);
+        this.savedInventoryTotal = ko.observable(0);
+        this.showSnapshots = ko.observable(false);
+        this.searchQuery = ko.observable('');
+        this.searchResults = ko.observableArray([]);
         this.deployInventory = new DeployInventory(this, deployInventoryJson);
         this.predefinedInventoryList = predefinedInventoryListJson;
         this.originDeployInventoryJson = this.deployInventory.toJson();
@@ -739,6 +847,8 @@ class DeployPlanViewModel extends ViewModel {
         monitor.listeners.push(() => this.hasChanges = true);
 
         this.listSavedInventoryNames();
+        this.showSnapshots.subscribe(() => this.listSavedInventoryNames());
+        this.searchQuery.subscribe(query => this.searchSavedInventories(query));
         window.onbeforeunload = () => {
             if (this.enableConfirmBeforeLeaving && this.hasChanges) {
                 return "Are you sure to leave this page?"
@@ -757,6 +867,10 @@ class DeployPlanViewModel extends ViewModel {
             return "";
         };
 
+        this.onLoadMoreSavedInventories = () => {
+            this.listSavedInventoryNames(this.savedInventoryNames().length);
+        };
+
         this.onLoadLastInventory = () => {
             this.loadLastInventory();
         };
@@ -791,9 +905,37 @@ class DeployPlanViewModel extends ViewModel {
         };
     }
 
-    listSavedInventoryNames() {
-        this.serviceObject.getSavedInventoryNames(res => {
-            this.savedInventoryNames(res.responseJSON);
+    /**
+     * list a page of the saved inventories, the snapshots are only listed if showSnapshots is checked
+     * @param offset {Number} number of the inventories already listed, 0 to list from the first page again
+     */
+    listSavedInventoryNames(offset = 0) {
+        this.serviceObject.listSavedInventories("", this.showSnapshots(), offset, SAVED_INVENTORY_PAGE_SIZE, res => {
+            let page = res.responseJSON;
+            let names = page.items.map(item => item.name);
+            if (offset === 0) {
+                this.savedInventoryNames(names);
+            } else {
+                ko.utils.arrayPushAll(this.savedInventoryNames, names);
+            }
+            this.savedInventoryTotal(page.total);
+        });
+    }
+
+    /**
+     * search all the saved inventories including the snapshots on server, since only a page of them is listed
+     */
+    searchSavedInventories(query) {
+        query = (query || "").trim();
+        if (!query) {
+            this.searchResults([]);
+            return;
+        }
+        this.serviceObject.listSavedInventories(query, true, 0, SAVED_INVENTORY_SEARCH_SIZE, res => {
+            // drop the results of a query already changed
+            if (query === this.searchQuery().trim()) {
+                this.searchResults(res.responseJSON.items.map(item => item.name));
+            }
         });
     }
 
@@ -823,6 +965,7 @@ class DeployPlanViewModel extends ViewModel {
                 if (result.changes) inventory.changes(result.changes);
                 if (this.savedInventoryNames().indexOf(inventoryJson.name) < 0) {
                     this.savedInventoryNames.splice(0, 0, inventoryJson.name);
+                    this.savedInventoryTotal(this.savedInventoryTotal() + 1);
                 }
                 this.hasChanges = false;
             } else {
@@ -836,6 +979,7 @@ class DeployPlanViewModel extends ViewModel {
             let index = this.savedInventoryNames().indexOf(inventoryName);
             if (index >= 0) {
                 this.savedInventoryNames.splice(index, 1);
+                this.savedInventoryTotal(this.savedInventoryTotal() - 1);
                 if (this.deployInventory.name() === inventoryName) {
                     this.deployInventory.updateDate("");
                 }
@@ -2243,6 +2387,41 @@ Array.prototype.toMap = function() {
     return map;
 };
 
+/**
+ * create the json patch (RFC 6902) operations which transform a to b, the arrays of different lengths are replaced as a whole
+ * @return {{op: String, path: String, value: *}[]}
+ */
+function createJsonPatch(a, b, path, operations) {
+    path = path || "";
+    operations = operations || [];
+    if (a === b) {
+        return operations;
+    }
+    let isObject = x => x !== null && typeof x === 'object';
+    if (!isObject(a) || !isObject(b) || Array.isArray(a) !== Array.isArray(b) || (Array.isArray(a) && a.length !== b.length)) {
+        operations.push({op: "replace", path: path, value: b});
+        return operations;
+    }
+    let has = (x, p) => x.hasOwnProperty(p) && x[p] !== undefined;
+    let childPath = p => path + "/" + String(p).replace(/~/g, "~0").replace(/\//g, "~1");
+    let p;
+    for (p in a) {
+        if (has(a, p)) {
+            if (has(b, p)) {
+                createJsonPatch(a[p], b[p], childPath(p), operations);
+            } else {
+                operations.push({op: "remove", path: childPath(p)});
+            }
+        }
+    }
+    for (p in b) {
+        if (has(b, p) && !has(a, p)) {
+            operations.push({op: "add", path: childPath(p), value: b[p]});
+        }
+    }
+    return operations;
+}
+
 function getObjectDeepChanges(a, b, limit) {
     let changes = [], p;
     if (a === b) {
@@ -0,0 +1,172 @@
+package com.yit.deploy.plugin.parameters.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class LogInventoryStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void truncatesTornLastRecord() throws Exception {
+        File root = tmp.newFolder();
+        try (LogInventoryStore store = new LogInventoryStore(root)) {
+            store.save("a", "{\"name\":\"a\"}");
+            store.save("b", "{\"name\":\"b\"}");
+        }
+        File log = getLogFile(root);
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        try (LogInventoryStore store = new LogInventoryStore(root)) {
+            assertEquals("{\"name\":\"a\"}", store.load("a"));
+            assertNull(store.load("b"));
+            store.save("c", "{\"name\":\"c\"}");
+        }
+        assertEquals(1, listBackups(root).length);
+
+        try (LogInventoryStore store = new LogInventoryStore(root)) {
+            assertEquals(new HashSet<>(Arrays.asList("a", "c")), new HashSet<>(store.list()));
+            assertEquals("{\"name\":\"c\"}", store.load("c"));
+        }
+    }
+
+    @Test
+    public void truncatesLastRecordWithBadChecksum() throws Exception {
+        File root = tmp.newFolder();
+        try (LogInventoryStore store = new LogInventoryStore(root)) {
+            store.save("a", "{\"name\":\"a\"}");
+            store.save("b", "{\"name\":\"b\"}");
+        }
+        flipByte(getLogFile(root), getLogFile(root).length() - 2);
+
+        try (LogInventoryStore store = new LogInventoryStore(root)) {
+            assertEquals("{\"name\":\"a\"}", store.load("a"));
+            assertNull(store.load("b"));
+        }
+    }
+
+    @Test
+    public void failsOnCorruptionBeforeLastRecord() throws Exception {
+        File root = tmp.newFolder();
+        try (LogInventoryStore store = new LogInventoryStore(root)) {
+            store.save("a", "{\"name\":\"a\"}");
+            store.save("b", "{\"name\":\"b\"}");
+        }
+        File log = getLogFile(root);
+        long size = log.length();
+        // inside the payload of the first record
+        flipByte(log, 12);
+
+        try {
+            new LogInventoryStore(root).close();
+            fail("a corrupted record followed by others should not be truncated");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("corrupted"));
+        }
+        assertEquals(size, log.length());
+        File[] backups = listBackups(root);
+        assertEquals(1, backups.length);
+        assertEquals(size, backups[0].length());
+    }
+
+    @Test
+    public void compactsObsoleteRecords() throws Exception {
+        File root = tmp.newFolder();
+        char[] chars = new char[100 * 1024];
+        String last = null;
+        try (LogInventoryStore store = new LogInventoryStore(root)) {
+            store.save("small", "{}");
+            store.setHead("small");
+            for (int i = 0; i < 60; i++) {
+                Arrays.fill(chars, (char) ('a' + i % 26));
+                last = "{\"value\":\"" + new String(chars) + i + "\"}";
+                store.save("big", last);
+            }
+            assertEquals(last, store.load("big"));
+        }
+        assertTrue("the log should be compacted", getLogFile(root).length() < 4 * 1024 * 1024);
+
+        try (LogInventoryStore store = new LogInventoryStore(root)) {
+            assertEquals(last, store.load("big"));
+            assertEquals("{}", store.load("small"));
+            assertEquals("small", store.getHead());
+            assertEquals(Arrays.asList("big", "small"), store.list());
+        }
+    }
+
+    @Test
+    public void migratesJsonFiles() throws Exception {
+        File root = tmp.newFolder();
+        FileInventoryStore files = new FileInventoryStore(root);
+        files.save("old", "{\"name\":\"old\"}");
+        files.save("new", "{\"name\":\"new\"}");
+        files.setHead("old");
+        assertTrue(new File(root, "old.json").setLastModified(1000000000000L));
+        assertTrue(new File(root, "new.json").setLastModified(1500000000000L));
+
+        try (LogInventoryStore store = InventoryStores.openLog(root)) {
+            assertEquals(Arrays.asList("new", "old"), store.list());
+            assertEquals("{\"name\":\"old\"}", store.load("old"));
+            assertEquals("{\"name\":\"new\"}", store.load("new"));
+            assertEquals("old", store.getHead());
+            assertEquals(Long.valueOf(1000000000000L), store.listWithTimestamps().get("old"));
+        }
+        // left for switching back to the file storage
+        assertTrue(new File(root, "old.json").isFile());
+
+        try (LogInventoryStore store = InventoryStores.openLog(root)) {
+            store.delete("new");
+        }
+        // switched to the file storage and back
+        files.save("old", "{\"name\":\"changed\"}");
+        files.save("later", "{}");
+        files.setHead("later");
+        assertTrue(getLogFile(root).setLastModified(System.currentTimeMillis() - 10000));
+
+        try (LogInventoryStore store = InventoryStores.openLog(root)) {
+            assertEquals("{\"name\":\"changed\"}", store.load("old"));
+            assertEquals("{}", store.load("later"));
+            assertEquals("later", store.getHead());
+            // older than the log, so it stays deleted
+            assertNull(store.load("new"));
+        }
+
+        // imported only once
+        try (LogInventoryStore store = InventoryStores.openLog(root)) {
+            store.save("old", "{\"name\":\"logged\"}");
+        }
+        try (LogInventoryStore store = InventoryStores.openLog(root)) {
+            assertEquals("{\"name\":\"logged\"}", store.load("old"));
+        }
+    }
+
+    private static File getLogFile(File root) {
+        return new File(root, LogInventoryStore.LOG_FILE_NAME);
+    }
+
+    private static File[] listBackups(File root) {
+        File[] files = root.listFiles((dir, name) -> name.startsWith(LogInventoryStore.LOG_FILE_NAME + ".broken-"));
+        return files == null ? new File[0] : files;
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(position);
+            int b = f.read();
+            f.seek(position);
+            f.write(b ^ 0xff);
+        }
+    }
+}
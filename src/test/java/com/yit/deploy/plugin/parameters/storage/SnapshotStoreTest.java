@@ -0,0 +1,67 @@
+package com.yit.deploy.plugin.parameters.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SnapshotStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void replaysJournal() throws Exception {
+        File root = tmp.newFolder();
+        SnapshotStore store = new SnapshotStore(root);
+        assertEquals("s", store.save("s", "{\"name\":\"s\",\"a\":1}", 1000));
+        assertEquals("s-2", store.save("s", "{\"a\":1}", 2000));
+        store.save("t", "{\"b\":2}", 3000);
+        store.delete("t");
+        assertFalse("saving should not write the whole index", new File(root, "index.json").exists());
+
+        SnapshotStore reopened = new SnapshotStore(root);
+        assertEquals(Arrays.asList("s", "s-2"), new ArrayList<>(reopened.listWithTimestamps().keySet()));
+        assertEquals(Long.valueOf(2000), reopened.listWithTimestamps().get("s-2"));
+        assertEquals("{\"a\":1,\"name\":\"s-2\"}", reopened.load("s-2"));
+        assertNull(reopened.load("t"));
+    }
+
+    @Test
+    public void dropsTornLastJournalRecord() throws Exception {
+        File root = tmp.newFolder();
+        new SnapshotStore(root).save("s", "{}", 1000);
+        try (FileOutputStream out = new FileOutputStream(new File(root, "index.journal"), true)) {
+            out.write("{\"name\":\"t\",\"ha".getBytes(StandardCharsets.UTF_8));
+        }
+
+        SnapshotStore store = new SnapshotStore(root);
+        assertEquals(Arrays.asList("s"), new ArrayList<>(store.listWithTimestamps().keySet()));
+        store.save("u", "{}", 2000);
+
+        assertEquals(Arrays.asList("s", "u"), new ArrayList<>(new SnapshotStore(root).listWithTimestamps().keySet()));
+    }
+
+    @Test
+    public void foldsJournalIntoIndex() throws Exception {
+        File root = tmp.newFolder();
+        SnapshotStore store = new SnapshotStore(root);
+        for (int i = 0; i < 1001; i++) {
+            store.save("s", "{\"i\":" + i + "}", i);
+        }
+        assertTrue(new File(root, "index.json").isFile());
+        assertFalse(new File(root, "index.journal").exists());
+        store.save("s", "{}", 2000);
+
+        SnapshotStore reopened = new SnapshotStore(root);
+        assertEquals(1002, reopened.listWithTimestamps().size());
+        assertEquals("{\"i\":1000,\"name\":\"s-1001\"}", reopened.load("s-1001"));
+    }
+}
@@ -0,0 +1,111 @@
+package com.yit.deploy.plugin.steps;
+
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import javaposse.jobdsl.plugin.JenkinsDslScriptLoader;
+import javaposse.jobdsl.plugin.LookupStrategy;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the throughput of generating the same pipeline jobs by {@code renderer.pipelineJob} and by the dsl
+ * {@code pipelineJob}, both run from a dsl script and saved through {@link DeployJobManagement} as generateJobs does.
+ */
+public class PipelineJobRendererBenchmarkTest {
+
+    private static final int JOB_COUNT = 200;
+
+    private static final String DSL_SCRIPT =
+        "(1..count).each { i ->\n" +
+        "    pipelineJob(\"${prefix}-${i}\") {\n" +
+        "        description(\"generated job ${i}\")\n" +
+        "        parameters {\n" +
+        "            stringParam('project', \"project-${i}\", '')\n" +
+        "            booleanParam('skipTests', false, '')\n" +
+        "        }\n" +
+        "        definition {\n" +
+        "            cps {\n" +
+        "                script('deployProject params')\n" +
+        "                sandbox()\n" +
+        "            }\n" +
+        "        }\n" +
+        "    }\n" +
+        "}\n";
+
+    private static final String RENDERER_SCRIPT =
+        "(1..count).each { i ->\n" +
+        "    renderer.pipelineJob(\n" +
+        "        name: \"${prefix}-${i}\",\n" +
+        "        description: \"generated job ${i}\",\n" +
+        "        script: 'deployProject params',\n" +
+        "        parameters: [\n" +
+        "            [type: 'string', name: 'project', defaultValue: \"project-${i}\", description: ''],\n" +
+        "            [type: 'boolean', name: 'skipTests', defaultValue: false, description: ''],\n" +
+        "        ]\n" +
+        "    )\n" +
+        "}\n";
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void comparesRendererWithDsl() throws Exception {
+        WorkflowJob seed = r.createProject(WorkflowJob.class, "seed");
+        seed.setDefinition(new CpsFlowDefinition("echo 'seed'", true));
+        WorkflowRun run = r.buildAndAssertSuccess(seed);
+
+        // warm up the script compilation and the class loading of both paths
+        generate(run, "dsl-warmup", DSL_SCRIPT);
+        generate(run, "renderer-warmup", RENDERER_SCRIPT);
+
+        double dslRate = generate(run, "dsl", DSL_SCRIPT);
+        double rendererRate = generate(run, "renderer", RENDERER_SCRIPT);
+        System.out.println(String.format("dsl pipelineJob: %.1f jobs/sec, renderer.pipelineJob: %.1f jobs/sec, %.2fx",
+            dslRate, rendererRate, rendererRate / dslRate));
+
+        // the same jobs are generated by both, so the throughputs are comparable
+        for (int i = 1; i <= JOB_COUNT; i++) {
+            WorkflowJob dslJob = r.jenkins.getItemByFullName("dsl-" + i, WorkflowJob.class);
+            WorkflowJob renderedJob = r.jenkins.getItemByFullName("renderer-" + i, WorkflowJob.class);
+            assertNotNull(dslJob);
+            assertNotNull(renderedJob);
+            assertEquals(dslJob.getDescription(), renderedJob.getDescription());
+            assertEquals(((CpsFlowDefinition) dslJob.getDefinition()).getScript(), ((CpsFlowDefinition) renderedJob.getDefinition()).getScript());
+
+            ParametersDefinitionProperty dslParameters = dslJob.getProperty(ParametersDefinitionProperty.class);
+            ParametersDefinitionProperty renderedParameters = renderedJob.getProperty(ParametersDefinitionProperty.class);
+            assertEquals(dslParameters.getParameterDefinitionNames(), renderedParameters.getParameterDefinitionNames());
+            assertEquals(((StringParameterDefinition) dslParameters.getParameterDefinition("project")).getDefaultValue(),
+                ((StringParameterDefinition) renderedParameters.getParameterDefinition("project")).getDefaultValue());
+        }
+    }
+
+    /**
+     * @return jobs generated per second
+     */
+    private double generate(WorkflowRun run, String prefix, String script) throws Exception {
+        Map<String, Object> params = new HashMap<>();
+        params.put("prefix", prefix);
+        params.put("count", JOB_COUNT);
+        PipelineJobRenderer renderer = new PipelineJobRenderer();
+        params.put("renderer", renderer);
+
+        DeployJobManagement jobManagement = new DeployJobManagement(
+            System.out, params, run, r.jenkins.getRootPath(), LookupStrategy.JENKINS_ROOT, false
+        );
+        renderer.setJobManagement(jobManagement);
+
+        long start = System.nanoTime();
+        new JenkinsDslScriptLoader(jobManagement).runScript(script);
+        return JOB_COUNT * 1e9 / (System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,186 @@
+package com.yit.deploy.plugin.steps.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class MailOutboxTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FakeSmtpServer server;
+    private ScheduledExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeSmtpServer();
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void deliversQueuedMessage() throws Exception {
+        File directory = tmp.newFolder("outbox");
+        MailOutbox outbox = new MailOutbox(directory, this::createSession, executor);
+
+        MailOutbox.Receipt receipt = outbox.enqueue(createMessage("hello"));
+        receipt.awaitDelivery();
+
+        assertEquals(1, server.messages.size());
+        assertTrue(server.messages.get(0).contains("Subject: hello"));
+        assertEquals(0, listMessageFiles(directory).length);
+    }
+
+    @Test
+    public void resendsMessagesLeftByLastRun() throws Exception {
+        File directory = tmp.newFolder("outbox");
+        try (OutputStream out = new FileOutputStream(new File(directory, "left.eml"))) {
+            createMessage("left over").writeTo(out);
+        }
+
+        MailOutbox outbox = new MailOutbox(directory, this::createSession, executor);
+        outbox.recover();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.messages.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, server.messages.size());
+        assertTrue(server.messages.get(0).contains("Subject: left over"));
+        while (listMessageFiles(directory).length > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, listMessageFiles(directory).length);
+    }
+
+    @Test
+    public void keepsMessageWhenWaitingIsStopped() throws Exception {
+        server.close();
+        File directory = tmp.newFolder("outbox");
+        MailOutbox outbox = new MailOutbox(directory, this::createSession, executor);
+
+        MailOutbox.Receipt receipt = outbox.enqueue(createMessage("pending"));
+        receipt.stopWaiting();
+        try {
+            receipt.awaitDelivery();
+            fail("waiting should be cancelled");
+        } catch (java.util.concurrent.CancellationException expected) {
+            // the message stays in the outbox for the retries
+        }
+        // the server is down, so the message could never be delivered
+        assertEquals(1, listMessageFiles(directory).length);
+    }
+
+    private static File[] listMessageFiles(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".eml"));
+        return files == null ? new File[0] : files;
+    }
+
+    private Session createSession() {
+        Properties props = new Properties();
+        props.put("mail.smtp.host", "127.0.0.1");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+        props.put("mail.smtp.connectiontimeout", "5000");
+        props.put("mail.smtp.timeout", "5000");
+        return Session.getInstance(props);
+    }
+
+    private MimeMessage createMessage(String subject) throws Exception {
+        MimeMessage message = new MimeMessage(createSession());
+        message.setFrom(new InternetAddress("jenkins@example.com"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("dev@example.com"));
+        message.setSubject(subject);
+        message.setText("body of " + subject);
+        return message;
+    }
+
+    /**
+     * accepts any mail and keeps the data of it
+     */
+    private static class FakeSmtpServer implements Closeable {
+        private final ServerSocket socket;
+        private final List<String> messages = new CopyOnWriteArrayList<>();
+        private final Thread thread;
+
+        private FakeSmtpServer() throws IOException {
+            socket = new ServerSocket(0);
+            thread = new Thread(this::serve, "fake-smtp");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private int getPort() {
+            return socket.getLocalPort();
+        }
+
+        private void serve() {
+            while (!socket.isClosed()) {
+                try (Socket client = socket.accept()) {
+                    handle(client);
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void handle(Socket client) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+            Writer out = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.US_ASCII);
+            reply(out, "220 localhost");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.toUpperCase();
+                if (command.startsWith("EHLO") || command.startsWith("HELO")) {
+                    reply(out, "250 localhost");
+                } else if (command.startsWith("DATA")) {
+                    reply(out, "354 end with .");
+                    StringBuilder data = new StringBuilder();
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        data.append(line).append('\n');
+                    }
+                    messages.add(data.toString());
+                    reply(out, "250 queued");
+                } else if (command.startsWith("QUIT")) {
+                    reply(out, "221 bye");
+                    return;
+                } else {
+                    reply(out, "250 ok");
+                }
+            }
+        }
+
+        private static void reply(Writer out, String line) throws IOException {
+            out.write(line + "\r\n");
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}